@@ -0,0 +1,360 @@
+package com.coolioasjulio.spotify;
+
+import com.wrapper.spotify.exceptions.SpotifyWebApiException;
+import com.wrapper.spotify.exceptions.detailed.TooManyRequestsException;
+import com.wrapper.spotify.exceptions.detailed.UnauthorizedException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every Spotify Web API call goes through here, so that the client as a whole stays under the rate limit.
+ *
+ * Calls are paced by a token bucket. When Spotify answers with a 429 anyway, nothing is sent until its
+ * Retry-After has passed. While calls are waiting, more important ones go first, so a playback command
+ * isn't stuck behind status reads. Identical reads that overlap share a single request.
+ *
+ * A call that can't get through in time fails with a {@link ThrottledException}, which callers should treat
+ * as "try again later" rather than as an error.
+ */
+public class ApiScheduler {
+    private static final Log log = Log.get(ApiScheduler.class);
+    // Spotify doesn't publish its limits, so stay well below what a single user could reasonably need
+    private static final double RATE_PER_SECOND = Double.parseDouble(System.getProperty("spotify.api.rate", "5"));
+    private static final int BURST = Integer.parseInt(System.getProperty("spotify.api.burst", "10"));
+    private static final int MAX_RETRIES = 3;
+    private static final int ASYNC_THREADS = 4;
+
+    public enum Priority {
+        /**
+         * Token requests and playback commands, which have a visible effect if they're late.
+         */
+        CONTROL(TimeUnit.SECONDS.toMillis(10)),
+        /**
+         * Status reads, which are repeated anyway, so there's no point waiting long for one.
+         */
+        READ(TimeUnit.SECONDS.toMillis(2)),
+        /**
+         * Anything that can wait, like looking up the user's name.
+         */
+        BACKGROUND(TimeUnit.SECONDS.toMillis(30));
+
+        private final long maxWaitMillis;
+
+        Priority(long maxWaitMillis) {
+            this.maxWaitMillis = maxWaitMillis;
+        }
+    }
+
+    /**
+     * A Spotify request, usually {@code () -> Auth.getAPI().someRequest().build().execute()}.
+     */
+    @FunctionalInterface
+    public interface Request<T> {
+        T execute() throws IOException, SpotifyWebApiException;
+    }
+
+    /**
+     * Thrown when a call couldn't be made within its priority's wait, because of the rate limit.
+     */
+    public static class ThrottledException extends IOException {
+        public ThrottledException(String message) {
+            super(message);
+        }
+    }
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition changed = lock.newCondition();
+    private static final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private static final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private static final AtomicInteger asyncThreads = new AtomicInteger();
+    private static ExecutorService asyncExecutor;
+    private static double tokens = BURST;
+    private static long lastRefillNanos = System.nanoTime();
+    private static long blockedUntilNanos; // from the last Retry-After, 0 if not blocked
+    private static long nextSeq;
+    private static long throttled;
+
+    private static class Ticket implements Comparable<Ticket> {
+        private final Priority priority;
+        private final long seq;
+
+        private Ticket(Priority priority, long seq) {
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * Make a call, waiting for the rate limit if need be. A 429 is retried after its Retry-After,
+     * as long as that fits in the priority's wait. A 401 means the access token ran out under us, so the
+     * call is retried once with a fresh one.
+     */
+    public static <T> T execute(Priority priority, Request<T> request) throws IOException, SpotifyWebApiException {
+        return execute(priority, request, true);
+    }
+
+    /**
+     * Like {@link #execute(Priority, Request)}, for the requests that get tokens in the first place. These
+     * don't use the access token, so a 401 is never retried.
+     */
+    public static <T> T executeTokenRequest(Request<T> request) throws IOException, SpotifyWebApiException {
+        return execute(Priority.CONTROL, request, false);
+    }
+
+    private static <T> T execute(Priority priority, Request<T> request, boolean reauth)
+            throws IOException, SpotifyWebApiException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(priority.maxWaitMillis);
+        for (int attempt = 0; ; attempt++) {
+            acquire(priority, deadline);
+            String token = Auth.getAccessToken();
+            try {
+                return request.execute();
+            } catch (TooManyRequestsException e) {
+                onTooManyRequests(e.getRetryAfter());
+                if (attempt >= MAX_RETRIES) {
+                    throw new ThrottledException("Still rate limited after " + MAX_RETRIES + " retries");
+                }
+            } catch (UnauthorizedException e) {
+                if (!reauth || !Auth.renewAfterUnauthorized(token)) throw e;
+                reauth = false; // if the new token doesn't work either, it's not going to
+            }
+        }
+    }
+
+    /**
+     * Like {@link #execute(Priority, Request)}, but if a read with the same key is already running,
+     * wait for its result instead of making another request.
+     *
+     * If the call making the request is cancelled, whoever was waiting on it makes the request instead.
+     *
+     * @param key Identifies the read, like the name of the endpoint. Only use this for reads.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T executeShared(String key, Priority priority, Request<T> request)
+            throws IOException, SpotifyWebApiException {
+        while (true) {
+            CompletableFuture<Object> mine = new CompletableFuture<>();
+            CompletableFuture<Object> running = inFlight.putIfAbsent(key, mine);
+            if (running == null) return executeShared(key, mine, priority, request);
+            try {
+                return (T) running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ThrottledException("Interrupted while waiting for a shared request");
+            } catch (CancellationException e) {
+                // the call making it gave up, which doesn't mean we have to
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+    }
+
+    private static <T> T executeShared(String key, CompletableFuture<Object> mine, Priority priority,
+                                       Request<T> request) throws IOException, SpotifyWebApiException {
+        // it's taken out before anyone waiting hears back, so if they try again they don't find it
+        try {
+            T result = execute(priority, request);
+            inFlight.remove(key, mine);
+            mine.complete(result);
+            return result;
+        } catch (Throwable e) {
+            inFlight.remove(key, mine);
+            if (Thread.currentThread().isInterrupted()) {
+                // we were cancelled, so the failure is ours alone
+                mine.cancel(false);
+            } else {
+                mine.completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Make a call on a background thread.
+     *
+     * The future can be cancelled, or given a timeout with {@link CompletableFuture#orTimeout}. Either one
+     * interrupts the call, so it stops waiting for the rate limit straight away, and its result is dropped
+     * if the request was already on its way.
+     */
+    public static <T> CompletableFuture<T> executeAsync(Priority priority, Request<T> request) {
+        return submit(() -> execute(priority, request));
+    }
+
+    /**
+     * Like {@link #executeAsync(Priority, Request)}, but shares the request with any identical read that's
+     * already running, as in {@link #executeShared(String, Priority, Request)}.
+     */
+    public static <T> CompletableFuture<T> executeSharedAsync(String key, Priority priority, Request<T> request) {
+        return submit(() -> executeShared(key, priority, request));
+    }
+
+    /**
+     * @return How many 429s Spotify has sent back.
+     */
+    public static long getThrottledCount() {
+        lock.lock();
+        try {
+            return throttled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <T> CompletableFuture<T> submit(Request<T> request) {
+        AsyncCall<T> call = new AsyncCall<>();
+        getAsyncExecutor().execute(() -> call.run(request));
+        return call;
+    }
+
+    private static synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            // a few threads, so one slow request doesn't hold up the rest. The rate limit still applies to all of them.
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "api-async-" + asyncThreads.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            asyncExecutor = executor;
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * A call on the async executor, which interrupts the thread running it if it's cancelled or times out.
+     */
+    private static class AsyncCall<T> extends CompletableFuture<T> {
+        private Thread runner; // while the call is running
+
+        private void run(Request<T> request) {
+            synchronized (this) {
+                if (isDone()) return; // cancelled before it started
+                runner = Thread.currentThread();
+            }
+            try {
+                complete(request.execute());
+            } catch (Exception e) {
+                completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    Thread.interrupted(); // don't let a late interrupt leak into the next call on this thread
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) abort();
+            return cancelled;
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            // this is also how orTimeout fails the future
+            boolean completed = super.completeExceptionally(ex);
+            if (completed) abort();
+            return completed;
+        }
+
+        private synchronized void abort() {
+            if (runner != null && runner != Thread.currentThread()) runner.interrupt();
+        }
+    }
+
+    /**
+     * Wait for this call's turn and take a token. Waiting calls are served in priority order, then in the
+     * order they arrived.
+     */
+    private static void acquire(Priority priority, long deadline) throws ThrottledException {
+        lock.lock();
+        try {
+            Ticket ticket = new Ticket(priority, nextSeq++);
+            waiting.add(ticket);
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    refill(now);
+                    long waitNanos;
+                    if (blockedUntilNanos > now) {
+                        waitNanos = blockedUntilNanos - now;
+                    } else if (tokens < 1) {
+                        waitNanos = (long) ((1 - tokens) / RATE_PER_SECOND * 1e9);
+                    } else if (waiting.peek() == ticket) {
+                        tokens--;
+                        return;
+                    } else {
+                        waitNanos = Long.MAX_VALUE; // someone more important goes first
+                    }
+                    if (waitNanos != Long.MAX_VALUE && now + waitNanos > deadline) {
+                        // no point waiting if we'd give up before the limit lifts
+                        throw new ThrottledException("Rate limited for another " + (waitNanos / 1_000_000L) + "ms");
+                    }
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        throw new ThrottledException("Timed out waiting behind other requests");
+                    }
+                    try {
+                        changed.awaitNanos(Math.min(waitNanos, remaining));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ThrottledException("Interrupted while waiting for the rate limit");
+                    }
+                }
+            } finally {
+                waiting.remove(ticket);
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void refill(long now) {
+        tokens = Math.min(BURST, tokens + (now - lastRefillNanos) / 1e9 * RATE_PER_SECOND);
+        lastRefillNanos = now;
+    }
+
+    private static void onTooManyRequests(int retryAfterSeconds) {
+        lock.lock();
+        try {
+            throttled++;
+            // Spotify always sends Retry-After, but don't hammer it if it's missing
+            long waitNanos = TimeUnit.SECONDS.toNanos(Math.max(1, retryAfterSeconds));
+            blockedUntilNanos = Math.max(blockedUntilNanos, System.nanoTime() + waitNanos);
+            tokens = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        log.warn("Rate limited by Spotify, backing off for %ds", Math.max(1, retryAfterSeconds));
+    }
+
+    private static IOException rethrow(Throwable t) throws SpotifyWebApiException {
+        if (t instanceof IOException) return (IOException) t;
+        if (t instanceof SpotifyWebApiException) throw (SpotifyWebApiException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        throw new IllegalStateException(t);
+    }
+}
@@ -8,33 +8,62 @@ import java.awt.*;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.URI;
+import java.time.Duration;
+import java.util.Objects;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 public class Auth {
+    private static final Log log = Log.get(Auth.class);
     private static final int PORT = 8080;
     private static final String SCOPES = "user-read-playback-state user-modify-playback-state";
     private static final String REDIRECT_URI = String.format("http://localhost:%d", PORT);
     private static final File tokenFile = new File(System.getProperty("user.home") + File.separator + ".spotifyparty", "token");
+    // refresh this long before the token expires, so requests in flight at the time still get through
+    private static final long REFRESH_MARGIN_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long MIN_REFRESH_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long REFRESH_RETRY_MS = TimeUnit.SECONDS.toMillis(30);
+    // how long a request that got a 401 waits for a new token before giving up
+    private static final long REFRESH_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(15);
     private static String clientID, clientSecret;
-    private static String accessToken, refreshToken;
-    private static SpotifyApi api;
-    private static Thread refreshThread;
+    private static volatile String accessToken, refreshToken;
+    private static volatile SpotifyApi api;
+    private static ScheduledExecutorService refresher;
+    private static ScheduledFuture<?> nextRefresh;
+    private static CompletableFuture<Void> refreshing; // the refresh in flight, if any
 
-    public static SpotifyApi getAPI() {
+    public static synchronized SpotifyApi getAPI() {
         if (api == null) {
-            api = new SpotifyApi.Builder()
+            var builder = new SpotifyApi.Builder()
                     .setClientSecret(getClientSecret())
                     .setClientId(getClientID())
-                    .setRedirectUri(SpotifyHttpManager.makeUri(REDIRECT_URI))
-                    .build();
+                    .setRedirectUri(SpotifyHttpManager.makeUri(REDIRECT_URI));
+            // -Dspotify.http=default goes back to the library's own HTTP client
+            if (!"default".equals(System.getProperty("spotify.http"))) {
+                builder.setHttpManager(new JdkHttpManager(
+                        Duration.ofMillis(Long.getLong("spotify.http.connectTimeoutMs", JdkHttpManager.DEFAULT_CONNECT_TIMEOUT.toMillis())),
+                        Duration.ofMillis(Long.getLong("spotify.http.requestTimeoutMs", JdkHttpManager.DEFAULT_REQUEST_TIMEOUT.toMillis()))));
+            }
+            // Point the Web API somewhere else, like a local stand-in for testing
+            if (System.getProperty("spotify.api.host") != null) {
+                builder.setScheme(System.getProperty("spotify.api.scheme", "http"))
+                        .setHost(System.getProperty("spotify.api.host"))
+                        .setPort(Integer.getInteger("spotify.api.port", 80));
+            }
+            api = builder.build();
         }
         return api;
     }
@@ -64,23 +93,117 @@ public class Auth {
         return refreshToken;
     }
 
-    private static void refreshTask() {
-        while (!Thread.interrupted()) {
-            try {
-                // tokens last 1 hour, so refresh periodically
-                Thread.sleep(TimeUnit.MINUTES.toMillis(45));
-                Auth.refresh();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    private static synchronized ScheduledExecutorService getRefresher() {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "token-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return refresher;
+    }
+
+    /**
+     * Use a new access token, and schedule the next refresh from when it expires.
+     *
+     * @param expiresIn How long the token lasts, in seconds, or null if Spotify didn't say.
+     */
+    private static synchronized void setAccessToken(String token, Integer expiresIn) {
+        accessToken = token;
+        getAPI().setAccessToken(token);
+        // tokens have always lasted an hour, so assume that if we aren't told
+        long lifetime = TimeUnit.SECONDS.toMillis(expiresIn != null ? expiresIn : 3600);
+        scheduleRefresh(Math.max(MIN_REFRESH_DELAY_MS, lifetime - REFRESH_MARGIN_MS));
+    }
+
+    private static synchronized void scheduleRefresh(long delayMs) {
+        if (nextRefresh != null) nextRefresh.cancel(false);
+        nextRefresh = getRefresher().schedule(() -> refreshAsync().whenComplete((v, e) -> {
+            if (e != null) {
+                log.warn("Unable to refresh the access token, trying again in %ds", REFRESH_RETRY_MS / 1000, e);
+                scheduleRefresh(REFRESH_RETRY_MS);
             }
+        }), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get a new access token. If a refresh is already under way, this returns that one instead of starting
+     * another, so any number of threads can ask at once.
+     */
+    private static synchronized CompletableFuture<Void> refreshAsync() {
+        if (refreshing == null) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            refreshing = done;
+            getRefresher().execute(() -> {
+                Exception error = null;
+                try {
+                    requestAccessToken();
+                } catch (Exception e) {
+                    error = e;
+                }
+                synchronized (Auth.class) {
+                    refreshing = null;
+                }
+                if (error == null) done.complete(null);
+                else done.completeExceptionally(error);
+            });
         }
+        return refreshing;
     }
 
-    private static void startRefreshThread() {
-        if (refreshThread == null || !refreshThread.isAlive()) {
-            refreshThread = new Thread(Auth::refreshTask);
-            refreshThread.setDaemon(true);
-            refreshThread.start();
+    private static void requestAccessToken() throws IOException, SpotifyWebApiException {
+        // If we don't have a refresh token set, load from disk
+        if (getAPI().getRefreshToken() == null) {
+            try (Scanner in = new Scanner(new FileInputStream(tokenFile))) {
+                String token = in.nextLine();
+                refreshToken = token;
+                getAPI().setRefreshToken(token);
+            }
+        }
+        // Now use the refresh token to get a new access token
+        var cred = ApiScheduler.executeTokenRequest(() -> getAPI().authorizationCodeRefresh().build().execute());
+        if (cred.getRefreshToken() != null && !cred.getRefreshToken().equals(refreshToken)) {
+            // Spotify may hand out a new refresh token along with the access token, and the old one stops working
+            saveRefreshToken(cred.getRefreshToken());
+        }
+        setAccessToken(cred.getAccessToken(), cred.getExpiresIn());
+        log.debug("Refreshed the access token expiresIn=%ss", cred.getExpiresIn());
+    }
+
+    /**
+     * Called when a request was turned away with a 401, to make sure there's a newer token than the one it
+     * used. Only one refresh is made however many requests were turned away.
+     *
+     * @param rejected The access token the request was sent with.
+     * @return True if there's a new token to retry with.
+     */
+    public static boolean renewAfterUnauthorized(String rejected) {
+        CompletableFuture<Void> refresh;
+        synchronized (Auth.class) {
+            if (!Objects.equals(rejected, accessToken)) return true; // someone else already got a new one
+            log.info("Access token was rejected, refreshing");
+            refresh = refreshAsync();
+        }
+        try {
+            refresh.get(REFRESH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Unable to refresh the access token after a 401", e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static synchronized void saveRefreshToken(String token) throws IOException {
+        refreshToken = token;
+        getAPI().setRefreshToken(token);
+        // Save the refresh token to disk
+        tokenFile.getParentFile().mkdirs();
+        try (PrintStream out = new PrintStream(tokenFile)) {
+            out.println(token);
         }
     }
 
@@ -131,43 +254,24 @@ public class Auth {
         String code = getAuthCode(backup);
         try {
             // exchange the code for the access and refresh tokens
-            var cred = getAPI().authorizationCode(code).build().execute();
-            accessToken = cred.getAccessToken();
-            refreshToken = cred.getRefreshToken();
-            getAPI().setAccessToken(accessToken);
-            getAPI().setRefreshToken(refreshToken);
-
-            // Save the refresh token to disk
-            tokenFile.getParentFile().mkdirs();
-            PrintStream out = new PrintStream(tokenFile);
-            out.println(refreshToken);
-            out.close();
+            var cred = ApiScheduler.executeTokenRequest(() -> getAPI().authorizationCode(code).build().execute());
+            saveRefreshToken(cred.getRefreshToken());
+            setAccessToken(cred.getAccessToken(), cred.getExpiresIn());
         } catch (IOException | SpotifyWebApiException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Get a new access token now, and keep refreshing it before it expires. If a refresh is already under way,
+     * this waits for it instead of starting another.
+     */
     public static void refresh() {
-        // If we don't have a refresh token set, load from disk
-        if (getAPI().getRefreshToken() == null) {
-            try (Scanner in = new Scanner(new FileInputStream(tokenFile))) {
-                String token = in.nextLine();
-                refreshToken = token;
-                getAPI().setRefreshToken(token);
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        // Now use the refresh token to get a new access token
         try {
-            var cred = getAPI().authorizationCodeRefresh().build().execute();
-            accessToken = cred.getAccessToken();
-            getAPI().setAccessToken(cred.getAccessToken());
-        } catch (IOException | SpotifyWebApiException e) {
-            throw new RuntimeException(e);
+            refreshAsync().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
         }
-        // Periodically refresh the access token
-        startRefreshThread();
     }
 
     public static void authenticate() {
@@ -184,13 +288,12 @@ public class Auth {
     public static void authenticate(Consumer<URI> backup) {
         // If we have a cached refresh token, use it to silently get an access token
         if (tokenFile.isFile()) {
-            System.out.println("Cached refresh token found! Refreshing...");
+            log.info("Cached refresh token found! Refreshing...");
             refresh();
         } else {
             // Otherwise, go through the entire authentication process
-            System.out.println("No cache found! Authenticating...");
+            log.info("No cache found! Authenticating...");
             authenticateFromScratch(backup);
-            startRefreshThread();
         }
     }
 
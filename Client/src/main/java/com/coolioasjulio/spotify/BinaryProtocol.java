@@ -0,0 +1,296 @@
+package com.coolioasjulio.spotify;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The framed binary protocol, negotiated by sending protocol version 2 or later in the InitialRequest.
+ * The handshake itself is still a JSON line, and everything after the acknowledgement is a frame:
+ * [varint length][type][payload], where the length counts the type byte and the payload.
+ *
+ * A state payload is [flags][varint timestamp][varint song position][track], where the track is either the
+ * 22 base62 characters of a spotify:track: uri, or a varint length followed by the full uri in UTF-8.
+ *
+ * Version 3 adds heartbeats. The acknowledgement gains a third field, the heartbeat interval in milliseconds,
+ * and the server sends a ping at that interval. The client answers every ping with a pong carrying the same
+ * payload. Either side can treat a few missed intervals of silence as a dead connection.
+ *
+ * Version 4 adds session resumption. The acknowledgement gains a fourth field, a resume token. A client whose
+ * connection drops can reconnect within the server's grace period with the party id and the token in the
+ * InitialRequest, and carry on as the same host or member. Either side sends a bye frame before closing on
+ * purpose, so any other disconnect is treated as a blip.
+ *
+ * Version 5 adds clock sync, so that every member agrees with the server's clock without depending on an
+ * internet time server. The client sends a time request carrying its own clock as a varint in milliseconds,
+ * and the server answers straight away with a time response carrying that timestamp followed by its own.
+ *
+ * The server has a matching copy of this class, so keep the two in sync.
+ */
+class BinaryProtocol {
+    public static final int VERSION = 5; // the newest version
+    public static final int BINARY_VERSION = 2; // the first version that uses frames
+    public static final int HEARTBEAT_VERSION = 3;
+    public static final int RESUME_VERSION = 4;
+    public static final int TIME_SYNC_VERSION = 5;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    public static final byte TYPE_STATE = 1;
+    public static final byte TYPE_MEMBER_COUNT = 2;
+    public static final byte TYPE_PING = 3;
+    public static final byte TYPE_PONG = 4;
+    public static final byte TYPE_BYE = 5;
+    public static final byte TYPE_TIME_REQUEST = 6;
+    public static final byte TYPE_TIME_RESPONSE = 7;
+
+    private static final String TRACK_PREFIX = "spotify:track:";
+    private static final int TRACK_ID_LENGTH = 22;
+
+    private static final int FLAG_PAUSED = 1;
+    private static final int FLAG_TRACK_ID = 1 << 1;
+    private static final int FLAG_NO_URI = 1 << 2;
+
+    /**
+     * Encode a state as a complete frame, header included.
+     */
+    public static byte[] encodeStateFrame(MusicManager.MusicState state) {
+        byte[] uriBytes = null;
+        int flags = state.isPaused ? FLAG_PAUSED : 0;
+        if (state.uri == null) {
+            flags |= FLAG_NO_URI;
+        } else if (isTrackUri(state.uri)) {
+            flags |= FLAG_TRACK_ID;
+        } else {
+            uriBytes = state.uri.getBytes(StandardCharsets.UTF_8);
+        }
+        // type + flags + timestamp + position + track
+        int trackLength = (flags & FLAG_TRACK_ID) != 0 ? TRACK_ID_LENGTH
+                : uriBytes != null ? varLongSize(uriBytes.length) + uriBytes.length : 0;
+        int length = 2 + varLongSize(state.timestamp) + varLongSize(zigZag(state.songPos)) + trackLength;
+        byte[] frame = new byte[varLongSize(length) + length];
+        int pos = writeVarLong(frame, 0, length);
+        frame[pos++] = TYPE_STATE;
+        frame[pos++] = (byte) flags;
+        pos = writeVarLong(frame, pos, state.timestamp);
+        pos = writeVarLong(frame, pos, zigZag(state.songPos));
+        if ((flags & FLAG_TRACK_ID) != 0) {
+            for (int i = 0; i < TRACK_ID_LENGTH; i++) {
+                frame[pos++] = (byte) state.uri.charAt(TRACK_PREFIX.length() + i);
+            }
+        } else if (uriBytes != null) {
+            pos = writeVarLong(frame, pos, uriBytes.length);
+            System.arraycopy(uriBytes, 0, frame, pos, uriBytes.length);
+        }
+        return frame;
+    }
+
+    /**
+     * Decode a state payload, not including the frame header or type.
+     *
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    public static MusicManager.MusicState decodeState(byte[] buf, int offset, int length) {
+        Reader r = new Reader(buf, offset, length);
+        int flags = r.readByte();
+        long timestamp = r.readVarLong();
+        int songPos = unZigZag(r.readVarLong());
+        String uri;
+        if ((flags & FLAG_NO_URI) != 0) {
+            uri = null;
+        } else if ((flags & FLAG_TRACK_ID) != 0) {
+            uri = TRACK_PREFIX + r.readAscii(TRACK_ID_LENGTH);
+        } else {
+            uri = r.readUtf8(r.readVarLong());
+        }
+        return new MusicManager.MusicState(timestamp, songPos, (flags & FLAG_PAUSED) != 0, uri);
+    }
+
+    /**
+     * Decode a member count payload, not including the frame header or type.
+     */
+    public static int decodeMemberCount(byte[] buf, int offset, int length) {
+        return (int) new Reader(buf, offset, length).readVarLong();
+    }
+
+    /**
+     * Wrap a payload in a frame.
+     */
+    public static byte[] encodeFrame(byte type, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[varLongSize(length + 1) + length + 1];
+        int pos = writeVarLong(frame, 0, length + 1);
+        frame[pos++] = type;
+        System.arraycopy(payload, offset, frame, pos, length);
+        return frame;
+    }
+
+    /**
+     * Block until a whole frame has been read.
+     *
+     * @return The frame, or null if the stream ended cleanly before the frame started.
+     * @throws IOException If the stream failed, ended in the middle of a frame, or the frame is too big.
+     */
+    public static Frame readFrame(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return null;
+                throw new EOFException();
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            if (shift >= 21) throw new IOException("Malformed frame length!");
+        }
+        if (length < 1 || length > MAX_FRAME_LENGTH) throw new IOException("Bad frame length: " + length);
+        byte[] buf = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buf, read, length - read);
+            if (n < 0) throw new EOFException();
+            read += n;
+        }
+        return new Frame(buf[0], buf);
+    }
+
+    /**
+     * Encode a time sync frame, whose payload is a sequence of varint timestamps.
+     */
+    public static byte[] encodeTimeFrame(byte type, long... times) {
+        int length = 1;
+        for (long t : times) {
+            length += varLongSize(t);
+        }
+        byte[] frame = new byte[varLongSize(length) + length];
+        int pos = writeVarLong(frame, 0, length);
+        frame[pos++] = type;
+        for (long t : times) {
+            pos = writeVarLong(frame, pos, t);
+        }
+        return frame;
+    }
+
+    /**
+     * Decode the timestamps in a time sync payload, not including the frame header or type.
+     *
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    public static long[] decodeTimes(byte[] buf, int offset, int length) {
+        Reader r = new Reader(buf, offset, length);
+        long[] times = new long[length];
+        int n = 0;
+        while (r.pos < r.end) {
+            times[n++] = r.readVarLong();
+        }
+        return Arrays.copyOf(times, n);
+    }
+
+    private static boolean isTrackUri(String uri) {
+        if (uri.length() != TRACK_PREFIX.length() + TRACK_ID_LENGTH || !uri.startsWith(TRACK_PREFIX)) return false;
+        for (int i = TRACK_PREFIX.length(); i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) return false;
+        }
+        return true;
+    }
+
+    private static long zigZag(int n) {
+        return ((long) n << 1) ^ (n >> 31);
+    }
+
+    private static int unZigZag(long n) {
+        return (int) (n >>> 1) ^ -(int) (n & 1);
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarLong(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    public static class Frame {
+        public final byte type;
+        private final byte[] buf;
+
+        private Frame(byte type, byte[] buf) {
+            this.type = type;
+            this.buf = buf;
+        }
+
+        public MusicManager.MusicState decodeState() {
+            return BinaryProtocol.decodeState(buf, 1, buf.length - 1);
+        }
+
+        public int decodeMemberCount() {
+            return BinaryProtocol.decodeMemberCount(buf, 1, buf.length - 1);
+        }
+
+        public long[] decodeTimes() {
+            return BinaryProtocol.decodeTimes(buf, 1, buf.length - 1);
+        }
+
+        /**
+         * Build the pong that answers this ping.
+         */
+        public byte[] encodePong() {
+            return encodeFrame(TYPE_PONG, buf, 1, buf.length - 1);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            pos = offset;
+            end = offset + length;
+        }
+
+        int readByte() {
+            if (pos >= end) throw new IllegalArgumentException("Truncated payload!");
+            return buf[pos++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Malformed varint!");
+        }
+
+        String readAscii(int length) {
+            if (length < 0 || length > end - pos) throw new IllegalArgumentException("Truncated payload!");
+            String s = new String(buf, pos, length, StandardCharsets.US_ASCII);
+            pos += length;
+            return s;
+        }
+
+        /**
+         * @param length Taken as a long, so a length prefix too big for an int is rejected rather than truncated.
+         */
+        String readUtf8(long length) {
+            if (length < 0 || length > end - pos) throw new IllegalArgumentException("Truncated payload!");
+            String s = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return s;
+        }
+    }
+}
@@ -2,9 +2,14 @@ package com.coolioasjulio.spotify;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
-import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Client {
+    private static final Log log = Log.get(Client.class);
+
     public static void main(String[] args) {
         Client c = new Client();
         c.start();
@@ -15,14 +20,21 @@ public class Client {
     private MusicManager musicManager;
     private final Object managerLock = new Object();
     private Thread musicThread;
-    private Thread memberMonitorThread;
     private ClientGUI gui;
-
-    public Client() {
-        Auth.authenticate();
-    }
+    private CompletableFuture<Void> signedIn;
+    // for anything that talks to the network on behalf of the GUI, so it never runs on the Swing thread
+    private final ExecutorService background = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "client-background");
+        t.setDaemon(true);
+        return t;
+    });
 
     public void start() {
+        long launched = ManagementFactory.getRuntimeMXBean().getStartTime();
+        // Signing in, looking up the profile and warming up the clock all happen while the window is up
+        signedIn = CompletableFuture.runAsync(Auth::authenticate, background);
+        PartyManager.warmUpClock();
+
         gui = new ClientGUI();
 
         gui.versionLabel.setText(version);
@@ -31,15 +43,27 @@ public class Client {
         gui.leavePartyButton.addActionListener(this::leaveParty);
         gui.endPartyButton.addActionListener(this::leaveParty);
         gui.logOutButton.addActionListener(this::logout);
+        gui.usernameLabel.setText("Logging in...");
 
-        Auth.getAPI().getCurrentUsersProfile().build().executeAsync()
-                .thenAccept(u -> gui.usernameLabel.setText("Logged in as: " + u.getDisplayName()));
+        signedIn.thenCompose(v -> ApiScheduler.executeAsync(ApiScheduler.Priority.BACKGROUND,
+                () -> Auth.getAPI().getCurrentUsersProfile().build().execute()))
+                .whenComplete((u, e) -> SwingUtilities.invokeLater(() -> {
+                    if (e == null) {
+                        gui.usernameLabel.setText("Logged in as: " + u.getDisplayName());
+                        log.info("Signed in %dms after launch", System.currentTimeMillis() - launched);
+                    } else {
+                        log.error("Unable to sign in to Spotify", e);
+                        gui.usernameLabel.setText("Not logged in");
+                        displayError("There was an error logging in to Spotify!");
+                    }
+                }));
 
         JFrame frame = new JFrame("Spotify Party");
         frame.setContentPane(gui.mainPanel);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.pack();
         frame.setVisible(true);
+        log.info("Interactive %dms after launch", System.currentTimeMillis() - launched);
     }
 
     private void displayError(String error) {
@@ -47,35 +71,48 @@ public class Client {
     }
 
     private void musicTask() {
+        // parties can be joined before signing in has finished, but there's nothing to sync until it has
+        try {
+            signedIn.join();
+        } catch (RuntimeException e) {
+            leaveParty(null);
+            return;
+        }
         while (!Thread.interrupted()) {
-            boolean shouldSleep = false;
+            // the lock is only held long enough to see which party we're in, so leaving is never stuck behind Spotify
+            PartyManager pm;
+            MusicManager mm;
             synchronized (managerLock) {
-                if (partyManager != null && musicManager != null) {
-                    try {
-                        boolean running;
-                        shouldSleep = partyManager.isHost();
-                        if (partyManager.isHost()) {
-                            running = musicManager.pushMusicState();
-                        } else {
-                            running = musicManager.pullMusicState();
-                        }
-                        if (!running) {
-                            new Thread(() -> JOptionPane.showMessageDialog(gui.mainPanel,
-                                    "The party has ended!", "Info", JOptionPane.INFORMATION_MESSAGE)).start();
-                            leaveParty(null);
-                            break;
-                        }
-                    } catch (RuntimeException e) {
-                        e.printStackTrace();
-                        new Thread(() -> displayError("An error occurred! Restart the program!")).start();
-                        leaveParty(null);
-                        break;
-                    }
+                pm = partyManager;
+                mm = musicManager;
+            }
+            if (pm == null || mm == null) break;
+            long sleepMillis = 0;
+            try {
+                boolean running;
+                if (pm.isHost()) {
+                    running = mm.pushMusicState().join();
+                    sleepMillis = mm.getPollDelay();
+                } else {
+                    running = mm.pullMusicState().join();
+                }
+                if (mm.isClosed()) break; // we've left
+                if (!running) {
+                    new Thread(() -> JOptionPane.showMessageDialog(gui.mainPanel,
+                            "The party has ended!", "Info", JOptionPane.INFORMATION_MESSAGE)).start();
+                    leaveParty(null);
+                    break;
                 }
+            } catch (RuntimeException e) {
+                if (mm.isClosed()) break;
+                log.error("Music sync failed", e);
+                new Thread(() -> displayError("An error occurred! Restart the program!")).start();
+                leaveParty(null);
+                break;
             }
-            if (shouldSleep) {
+            if (sleepMillis > 0) {
                 try {
-                    Thread.sleep(500);
+                    Thread.sleep(sleepMillis);
                 } catch (InterruptedException e) {
                     break;
                 }
@@ -84,40 +121,22 @@ public class Client {
         }
     }
 
-    private void memberMonitorTask() {
-        while (!Thread.interrupted()) {
-            boolean shouldCheck;
-            synchronized (managerLock) {
-                shouldCheck = partyManager != null && partyManager.isHost();
-            }
-            try {
-                if (shouldCheck) {
-                    String line = partyManager.getIn().readLine();
-                    int i = Integer.parseInt(line.strip());
-                    gui.numMembersLabel.setText("Members: " + i);
-                }
-            } catch (IOException | NullPointerException | NumberFormatException ignored) {
-            }
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                break;
+    /**
+     * Show the host how many members there are, as soon as the server says.
+     */
+    private void watchMembers(PartyManager pm) {
+        pm.addListener(new PartyManager.Listener() {
+            @Override
+            public void onMemberCount(int members) {
+                SwingUtilities.invokeLater(() -> {
+                    // the party may have been left while this was on its way
+                    synchronized (managerLock) {
+                        if (partyManager != pm) return;
+                    }
+                    gui.numMembersLabel.setText("Members: " + members);
+                });
             }
-        }
-    }
-
-    private void startMemberMonitorTask() {
-        if (memberMonitorThread == null || !memberMonitorThread.isAlive()) {
-            memberMonitorThread = new Thread(this::memberMonitorTask);
-            memberMonitorThread.setDaemon(true);
-            memberMonitorThread.start();
-        }
-    }
-
-    private void stopMemberMonitorTask() {
-        if (memberMonitorThread != null) {
-            memberMonitorThread.interrupt();
-        }
+        });
     }
 
     private void startMusicTask() {
@@ -172,60 +191,82 @@ public class Client {
     private void leaveParty(ActionEvent e) {
         enableAllButtons();
         stopMusicTask();
-        stopMemberMonitorTask();
+        PartyManager pm;
+        MusicManager mm;
         synchronized (managerLock) {
-            if (partyManager != null) {
-                partyManager.close();
-                musicManager = null;
-                partyManager = null;
-            }
+            pm = partyManager;
+            mm = musicManager;
+            musicManager = null;
+            partyManager = null;
         }
+        // cancel anything in flight before closing the connection, so neither waits on the other
+        if (mm != null) mm.close();
+        if (pm != null) pm.close();
         gui.connectionStatusLabel.setText("Not connected");
         gui.numMembersLabel.setText("Not connected");
     }
 
     private void createParty(ActionEvent e) {
-        boolean success = false;
         synchronized (managerLock) {
-            if (partyManager == null) {
-                partyManager = PartyManager.createParty();
-                success = partyManager != null;
-                if (success) {
-                    musicManager = new MusicManager(partyManager);
-                    gui.joinCodeCreateField.setText(partyManager.getId());
-                }
-            }
-        }
-        if (success) {
-            startMusicTask();
-            startMemberMonitorTask();
-            gui.numMembersLabel.setText("Members: 0");
-            disableExcept(gui.endPartyButton);
-        } else {
-            displayError("There was an error contacting the server!");
+            if (partyManager != null) return;
         }
+        long clicked = System.currentTimeMillis();
+        disableAllButtons();
+        CompletableFuture.supplyAsync(PartyManager::createParty, background)
+                .whenComplete((pm, ex) -> SwingUtilities.invokeLater(() -> {
+                    if (pm == null) {
+                        enableAllButtons();
+                        displayError("There was an error contacting the server!");
+                    } else if (install(pm, clicked)) {
+                        gui.joinCodeCreateField.setText(pm.getId());
+                        startMusicTask();
+                        gui.numMembersLabel.setText("Members: 0");
+                        watchMembers(pm);
+                        disableExcept(gui.endPartyButton);
+                    }
+                }));
     }
 
     private void joinParty(ActionEvent e) {
-        try {
-            String id = gui.joinCodeJoinField.getText();
-            PartyManager pm = PartyManager.joinParty(id);
-            if (pm != null) {
-                disableExcept(gui.leavePartyButton);
-                synchronized (managerLock) {
-                    if (partyManager == null) {
-                        partyManager = pm;
-                        musicManager = new MusicManager(partyManager);
-                        gui.joinCodeCreateField.setText(partyManager.getId());
+        String id = gui.joinCodeJoinField.getText();
+        long clicked = System.currentTimeMillis();
+        disableAllButtons();
+        CompletableFuture.supplyAsync(() -> PartyManager.joinParty(id), background)
+                .whenComplete((pm, ex) -> SwingUtilities.invokeLater(() -> {
+                    if (ex != null) {
+                        enableAllButtons();
+                        displayError("There was an error contacting the server!");
+                    } else if (pm == null) {
+                        enableAllButtons();
+                        displayError("Invalid party code!");
+                    } else if (install(pm, clicked)) {
+                        disableExcept(gui.leavePartyButton);
+                        gui.joinCodeCreateField.setText(pm.getId());
+                        startMusicTask();
+                        gui.connectionStatusLabel.setText("Connected!");
                     }
-                }
-                startMusicTask();
-                gui.connectionStatusLabel.setText("Connected!");
-            } else {
-                displayError("Invalid party code!");
+                }));
+    }
+
+    /**
+     * Make a newly connected party the current one.
+     *
+     * @param clicked When the user asked for it, to log how long it took.
+     * @return False if we're already in a party, in which case the new one is closed.
+     */
+    private boolean install(PartyManager pm, long clicked) {
+        MusicManager mm = new MusicManager(pm);
+        synchronized (managerLock) {
+            if (partyManager != null) {
+                pm.close();
+                return false;
             }
-        } catch (RuntimeException ex) {
-            displayError("There was an error contacting the server!");
+            partyManager = pm;
+            musicManager = mm;
         }
+        log.info("Connected to the party %dms after clicking", System.currentTimeMillis() - clicked);
+        mm.getFirstSync().thenRun(() -> log.info("First synced playback %dms after clicking",
+                System.currentTimeMillis() - clicked));
+        return true;
     }
 }
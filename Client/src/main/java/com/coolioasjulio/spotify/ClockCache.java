@@ -0,0 +1,70 @@
+package com.coolioasjulio.spotify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Remembers recent clock offsets on disk, so a new session can start from one instead of waiting to measure
+ * it. Clocks drift slowly enough that an offset from a few minutes ago is still close, and it's refined by
+ * the next sync anyway.
+ *
+ * Offsets are kept by source, like a party server's address or "ntp", along with when they were measured.
+ */
+class ClockCache {
+    private static final Log log = Log.get(ClockCache.class);
+    private static final File cacheFile = new File(System.getProperty("user.home") + File.separator + ".spotifyparty", "clock");
+
+    private final Properties entries = new Properties();
+
+    /**
+     * @return The cache as it was last saved, which is empty if it can't be read.
+     */
+    public static ClockCache load() {
+        ClockCache cache = new ClockCache();
+        if (cacheFile.isFile()) {
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                cache.entries.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                log.warn("Unable to read the clock cache, starting without it", e);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param source Where the offset came from.
+     * @param maxAge How old an offset can be and still be used, in milliseconds.
+     * @return How far the source's clock was ahead of ours, or null if there's no offset recent enough.
+     */
+    public synchronized Long get(String source, long maxAge) {
+        String entry = entries.getProperty(source);
+        if (entry == null) return null;
+        String[] parts = entry.split(",");
+        try {
+            long offset = Long.parseLong(parts[0]);
+            long measuredAt = Long.parseLong(parts[1]);
+            long age = System.currentTimeMillis() - measuredAt;
+            return age >= 0 && age <= maxAge ? offset : null;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remember an offset that was just measured, and save it.
+     */
+    public synchronized void put(String source, long offset) {
+        entries.setProperty(source, offset + "," + System.currentTimeMillis());
+        cacheFile.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(cacheFile)) {
+            entries.store(out, null);
+        } catch (IOException e) {
+            log.warn("Unable to save the clock cache", e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.coolioasjulio.spotify;
+
+import java.util.ArrayDeque;
+
+/**
+ * Tracks the offset between this machine's clock and the server's, from NTP-style time samples taken over
+ * the party connection.
+ *
+ * Samples are taken in short rounds. The round trip of any one sample can be stretched by queueing
+ * somewhere along the way, which skews its offset, so each round only keeps the sample with the smallest
+ * round trip. The kept offsets are then fit over time, so the drift between the two clocks is corrected
+ * for in between rounds.
+ */
+class ClockSync {
+    private static final int MAX_POINTS = 8; // rounds used to estimate drift
+    private static final long MIN_DRIFT_SPAN_MS = 60_000; // don't trust a drift estimate over less than this
+    private static final double MAX_DRIFT = 500e-6; // any real clock is well within 500ppm
+
+    private final ArrayDeque<double[]> points = new ArrayDeque<>(); // {local time, offset} per round
+    private long roundStart = Long.MAX_VALUE;
+    private long bestRtt = Long.MAX_VALUE;
+    private double bestOffset;
+    private long bestTime;
+    private double drift;
+    private long samples;
+
+    /**
+     * Start collecting samples for a new round. Any responses to an earlier round are ignored from now on.
+     */
+    public synchronized void beginRound(long now) {
+        roundStart = now;
+        bestRtt = Long.MAX_VALUE;
+    }
+
+    /**
+     * Add a sample. The server's clock is assumed to have been read halfway through the round trip.
+     *
+     * @param sent       Our clock when the request was sent.
+     * @param serverTime The server's clock when it answered.
+     * @param received   Our clock when the response arrived.
+     */
+    public synchronized void addSample(long sent, long serverTime, long received) {
+        if (sent < roundStart || received < sent) return;
+        samples++;
+        long rtt = received - sent;
+        if (rtt < bestRtt) {
+            bestRtt = rtt;
+            bestOffset = serverTime - (sent + received) / 2.0;
+            bestTime = received;
+        }
+    }
+
+    /**
+     * Finish the current round, folding its best sample into the estimate.
+     *
+     * @return The round trip of the sample that was kept, or -1 if no samples came back.
+     */
+    public synchronized long endRound() {
+        roundStart = Long.MAX_VALUE;
+        if (bestRtt == Long.MAX_VALUE) return -1;
+        points.addLast(new double[]{bestTime, bestOffset});
+        if (points.size() > MAX_POINTS) points.removeFirst();
+        drift = fitDrift();
+        return bestRtt;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return !points.isEmpty();
+    }
+
+    /**
+     * @return How far the server's clock is ahead of ours, in milliseconds, at the given local time.
+     */
+    public synchronized long getOffset(long now) {
+        if (points.isEmpty()) return 0;
+        double[] last = points.getLast();
+        return Math.round(last[1] + drift * (now - last[0]));
+    }
+
+    public synchronized double getDrift() {
+        return drift;
+    }
+
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Least squares slope of offset against time.
+     */
+    private double fitDrift() {
+        if (points.size() < 3 || points.getLast()[0] - points.getFirst()[0] < MIN_DRIFT_SPAN_MS) return 0;
+        double t0 = points.getFirst()[0];
+        double meanT = 0, meanO = 0;
+        for (double[] p : points) {
+            meanT += p[0] - t0;
+            meanO += p[1];
+        }
+        meanT /= points.size();
+        meanO /= points.size();
+        double cov = 0, var = 0;
+        for (double[] p : points) {
+            double dt = p[0] - t0 - meanT;
+            cov += dt * (p[1] - meanO);
+            var += dt * dt;
+        }
+        return Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, cov / var));
+    }
+}
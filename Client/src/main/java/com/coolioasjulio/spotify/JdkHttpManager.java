@@ -0,0 +1,200 @@
+package com.coolioasjulio.spotify;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.wrapper.spotify.IHttpManager;
+import com.wrapper.spotify.exceptions.SpotifyWebApiException;
+import com.wrapper.spotify.exceptions.detailed.BadGatewayException;
+import com.wrapper.spotify.exceptions.detailed.BadRequestException;
+import com.wrapper.spotify.exceptions.detailed.ForbiddenException;
+import com.wrapper.spotify.exceptions.detailed.InternalServerErrorException;
+import com.wrapper.spotify.exceptions.detailed.NotFoundException;
+import com.wrapper.spotify.exceptions.detailed.ServiceUnavailableException;
+import com.wrapper.spotify.exceptions.detailed.TooManyRequestsException;
+import com.wrapper.spotify.exceptions.detailed.UnauthorizedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends the Web API's requests with java.net.http instead of the library's default client.
+ *
+ * Every request shares one HttpClient, so connections stay open between polls instead of paying for a
+ * TCP and TLS handshake each time. HTTP/2 is negotiated where the server supports it, which Spotify does,
+ * so a playback command can go out on the same connection while a status read is still waiting. Responses
+ * are asked for gzipped.
+ *
+ * Errors are reported the same way as the library's own manager, so callers can't tell the difference.
+ */
+public class JdkHttpManager implements IHttpManager {
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    // set by the client itself, so it won't let us set them
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+
+    public JdkHttpManager() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * @param connectTimeout How long to wait for a new connection.
+     * @param requestTimeout How long to wait for a response, once connected.
+     */
+    public JdkHttpManager(Duration connectTimeout, Duration requestTimeout) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        this.requestTimeout = requestTimeout;
+    }
+
+    @Override
+    public String get(URI uri, Header[] headers) throws IOException, SpotifyWebApiException {
+        return send("GET", uri, headers, null);
+    }
+
+    @Override
+    public String post(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        return send("POST", uri, headers, body);
+    }
+
+    @Override
+    public String put(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        return send("PUT", uri, headers, body);
+    }
+
+    @Override
+    public String delete(URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        return send("DELETE", uri, headers, body);
+    }
+
+    private String send(String method, URI uri, Header[] headers, HttpEntity body) throws IOException, SpotifyWebApiException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(requestTimeout)
+                .header("Accept-Encoding", "gzip");
+        boolean hasContentType = false;
+        if (headers != null) {
+            for (Header h : headers) {
+                String name = h.getName().toLowerCase();
+                if (RESTRICTED_HEADERS.contains(name)) continue;
+                hasContentType |= name.equals("content-type");
+                request.header(h.getName(), h.getValue());
+            }
+        }
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.noBody();
+        if (body != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.writeTo(out);
+            publisher = HttpRequest.BodyPublishers.ofByteArray(out.toByteArray());
+            if (!hasContentType && body.getContentType() != null) {
+                request.header("Content-Type", body.getContentType().getValue());
+            }
+        }
+        request.method(method, publisher);
+
+        HttpResponse<byte[]> response;
+        try {
+            response = client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            // the request was cancelled, and java.net.http has already dropped it
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + uri.getPath());
+        }
+        return checkResponse(response, readBody(response));
+    }
+
+    private static String readBody(HttpResponse<byte[]> response) throws IOException {
+        byte[] bytes = response.body();
+        if (bytes == null || bytes.length == 0) return null;
+        boolean gzipped = response.headers().firstValue("Content-Encoding").map("gzip"::equalsIgnoreCase).orElse(false);
+        if (gzipped) {
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                bytes = in.readAllBytes();
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The body of a successful response.
+     * @throws SpotifyWebApiException The matching exception for an error status, like the library's own manager.
+     */
+    private static String checkResponse(HttpResponse<byte[]> response, String body) throws SpotifyWebApiException {
+        int status = response.statusCode();
+        if (status < 400) return body;
+        String message = getErrorMessage(body, status);
+        switch (status) {
+            case 400:
+                throw new BadRequestException(message);
+            case 401:
+                throw new UnauthorizedException(message);
+            case 403:
+                throw new ForbiddenException(message);
+            case 404:
+                throw new NotFoundException(message);
+            case 429:
+                throw new TooManyRequestsException(message, getRetryAfter(response));
+            case 500:
+                throw new InternalServerErrorException(message);
+            case 502:
+                throw new BadGatewayException(message);
+            case 503:
+                throw new ServiceUnavailableException(message);
+            default:
+                return body;
+        }
+    }
+
+    /**
+     * @return The seconds to wait before trying again, or 0 if the response didn't say.
+     */
+    private static int getRetryAfter(HttpResponse<?> response) {
+        try {
+            return response.headers().firstValue("Retry-After").map(s -> Integer.parseInt(s.trim())).orElse(0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Spotify explains errors in the body, either as {"error": {"message": ...}} from the Web API or as
+     * {"error_description": ...} from the accounts service.
+     */
+    private static String getErrorMessage(String body, int status) {
+        if (body != null) {
+            try {
+                JsonElement element = JsonParser.parseString(body);
+                if (element.isJsonObject()) {
+                    JsonObject json = element.getAsJsonObject();
+                    if (json.has("error_description")) {
+                        return json.get("error_description").getAsString();
+                    } else if (json.has("error") && json.get("error").isJsonObject()
+                            && json.getAsJsonObject("error").has("message")) {
+                        return json.getAsJsonObject("error").get("message").getAsString();
+                    }
+                }
+            } catch (JsonParseException | IllegalStateException e) {
+                // not JSON, so there's nothing more to say than the status
+            }
+        }
+        return "HTTP " + status;
+    }
+}
@@ -0,0 +1,228 @@
+package com.coolioasjulio.spotify;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A small asynchronous logger. Logging a message only captures its arguments and drops them in a lock-free
+ * ring buffer, and a background thread does the formatting and the writing. If the ring is full the
+ * event is dropped and counted, so a slow console can never stall the sync loop.
+ *
+ * Lines look like: 2020-04-01T22:25:30.707Z INFO [Thread-2] MusicManager - Synced offset=12ms latency=40ms
+ * If the last argument is a Throwable, its stack trace is written after the line.
+ *
+ * The level comes from the spotify.log.level system property (default INFO, which is also used if the
+ * property isn't a level). Trace messages are meant for per-message events, and only 1 in
+ * spotify.log.traceSample of them are kept (default 100).
+ *
+ * The server has a matching copy of this class, so keep the two in sync.
+ */
+class Log {
+    enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 8192; // must be a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    private static final AtomicReferenceArray<Event> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long head; // only touched while holding the drain lock
+    private static final Object drainLock = new Object();
+    private static final PrintStream out = new PrintStream(new BufferedOutputStream(
+            new FileOutputStream(FileDescriptor.out), 16 * 1024), false);
+
+    private static volatile Level level = parseLevel(System.getProperty("spotify.log.level", "INFO"), Level.INFO);
+    private static volatile int traceSample = Integer.getInteger("spotify.log.traceSample", 100);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-shutdown"));
+    }
+
+    public static Log get(Class<?> c) {
+        return new Log(c.getSimpleName());
+    }
+
+    public static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    /**
+     * Look up a level by name, ignoring case. A bad name is reported on stderr rather than thrown, since a
+     * typo in a logging option shouldn't stop anything from starting.
+     *
+     * @return The level, or fallback if there's no level by that name.
+     */
+    static Level parseLevel(String name, Level fallback) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.printf("Unknown log level \"%s\", using %s%n", name, fallback);
+            return fallback;
+        }
+    }
+
+    /**
+     * Keep 1 in every n trace messages. 1 keeps all of them.
+     */
+    public static void setTraceSample(int n) {
+        if (n < 1) throw new IllegalArgumentException("n must be at least 1!");
+        traceSample = n;
+    }
+
+    /**
+     * @return How many messages were thrown away because the writer couldn't keep up.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    private final String name;
+
+    private Log(String name) {
+        this.name = name;
+    }
+
+    public boolean isEnabled(Level l) {
+        return l.compareTo(level) >= 0 && l != Level.OFF;
+    }
+
+    /**
+     * Check this before building the arguments of a trace message, since trace is used on hot paths.
+     */
+    public boolean isTraceEnabled() {
+        return isEnabled(Level.TRACE);
+    }
+
+    /**
+     * Log a per-message event. Only a sample of these are kept.
+     */
+    public void trace(String format, Object... args) {
+        if (!isTraceEnabled()) return;
+        int n = traceSample;
+        if (n > 1 && ThreadLocalRandom.current().nextInt(n) != 0) return;
+        log(Level.TRACE, format, args);
+    }
+
+    public void debug(String format, Object... args) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, format, args);
+    }
+
+    public void info(String format, Object... args) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, format, args);
+    }
+
+    public void warn(String format, Object... args) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, format, args);
+    }
+
+    public void error(String format, Object... args) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, format, args);
+    }
+
+    private void log(Level l, String format, Object[] args) {
+        Event e = new Event(System.currentTimeMillis(), l, Thread.currentThread().getName(), name, format, args);
+        if (!offer(e)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static boolean offer(Event e) {
+        long pos = tail.get();
+        while (true) {
+            int i = (int) (pos & MASK);
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(i, e);
+                    sequences.set(i, pos + 1); // publish
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; // full
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    private static Event poll() {
+        int i = (int) (head & MASK);
+        if (sequences.get(i) != head + 1) return null;
+        Event e = slots.get(i);
+        slots.set(i, null);
+        sequences.set(i, head + CAPACITY);
+        head++;
+        return e;
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private static int drain() {
+        synchronized (drainLock) {
+            int n = 0;
+            Event e;
+            while ((e = poll()) != null) {
+                e.write(out);
+                n++;
+            }
+            if (n > 0) out.flush();
+            return n;
+        }
+    }
+
+    private static class Event {
+        private final long time;
+        private final Level level;
+        private final String thread;
+        private final String logger;
+        private final String format;
+        private final Object[] args;
+
+        Event(long time, Level level, String thread, String logger, String format, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.thread = thread;
+            this.logger = logger;
+            this.format = format;
+            this.args = args;
+        }
+
+        void write(PrintStream out) {
+            String msg;
+            try {
+                msg = args.length == 0 ? format : String.format(format, args);
+            } catch (RuntimeException e) {
+                msg = format + " (bad format: " + e + ")";
+            }
+            out.printf("%s %s [%s] %s - %s\n", Instant.ofEpochMilli(time), level, thread, logger, msg);
+            if (args.length > 0 && args[args.length - 1] instanceof Throwable) {
+                ((Throwable) args[args.length - 1]).printStackTrace(out);
+            }
+        }
+    }
+}
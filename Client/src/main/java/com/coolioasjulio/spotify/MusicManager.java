@@ -1,25 +1,80 @@
 package com.coolioasjulio.spotify;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonParser;
 import com.wrapper.spotify.exceptions.SpotifyWebApiException;
+import com.wrapper.spotify.exceptions.detailed.UnauthorizedException;
 import com.wrapper.spotify.model_objects.miscellaneous.CurrentlyPlayingContext;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 public class MusicManager {
+    private static final Log log = Log.get(MusicManager.class);
+    private static final long STATS_INTERVAL = 20; // observations between sync stats in the log
+    private static final long READ_TIMEOUT_MS = 5000;
+    private static final long COMMAND_TIMEOUT_MS = 12_000; // long enough to wait out the rate limit for a command
+    // Hosts only publish when something changes, so members check their own playback this often in between
+    private static final long RECHECK_MS = 750;
+    // how long a device may take to act on a play or pause before it counts as having done something else
+    private static final long SETTLE_MS = 2000;
+    // where a playback command is, so it's only cancelled before it reaches Spotify
+    private static final int WAITING = 0, SENT = 1, WITHDRAWN = 2;
+
     private PartyManager manager;
-    private Gson gson;
     private String lastSong;
     private boolean paused;
     private Long unPauseTime = null;
+    private final PublishSchedule schedule = new PublishSchedule();
+    private final Map<String, SyncModel> syncModels = new HashMap<>(); // by device id
+    private volatile SyncModel syncModel; // for the device that was playing last
+
+    // States are delivered by the party's reader thread, so they keep arriving while an API call is running.
+    // Only the newest one is kept. It cancels whatever call is in flight for the last one, and is applied next.
+    private final Object stateLock = new Object();
+    private final PartyManager.Listener listener = new PartyManager.Listener() {
+        @Override
+        public void onState(MusicState state) {
+            MusicManager.this.onState(state);
+        }
+
+        @Override
+        public void onClosed(IOException error) {
+            onPartyClosed(error);
+        }
+    };
+    private MusicState pendingState; // the newest state that hasn't been applied yet
+    private MusicState lastState; // the last state applied, to check against until a new one arrives
+    private CompletableFuture<MusicState> waiter; // waiting for a state to arrive
+    private long settleUntil; // network time until which the device may still be acting on our last play or pause
+    private long followUpMs; // if a seek was just sent, how soon to look at where it landed
+    private CompletableFuture<?> inFlight; // the API call currently running
+    private BooleanSupplier withdraw; // claims the call in flight for cancelling, false if it has to be seen through
+    private volatile boolean closed;
+    private final CompletableFuture<Void> firstSync = new CompletableFuture<>();
+    private boolean readerDone;
+    private IOException readError;
+    private long skippedStates;
 
     public MusicManager(PartyManager manager) {
         this.manager = manager;
-        gson = new Gson();
+        manager.addListener(listener);
+    }
+
+    private CompletableFuture<Result> getPlaybackInfo() {
+        return track(ApiScheduler.executeSharedAsync("playback", ApiScheduler.Priority.READ, this::requestPlaybackInfo)
+                .orTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS));
     }
 
-    private Result getPlaybackInfo() throws IOException, SpotifyWebApiException {
+    private Result requestPlaybackInfo() throws IOException, SpotifyWebApiException {
+        // timed here rather than around the scheduler, so that waiting for the rate limit doesn't count
         long before = manager.getNetworkTime();
         var info = Auth.getAPI().getInformationAboutUsersCurrentPlayback().build().execute();
         long after = manager.getNetworkTime();
@@ -41,52 +96,287 @@ public class MusicManager {
         return r;
     }
 
+    private void onState(MusicState state) {
+        CompletableFuture<MusicState> waiting;
+        CompletableFuture<?> superseded = null;
+        synchronized (stateLock) {
+            waiting = waiter;
+            waiter = null;
+            if (waiting == null) {
+                // still busy with the last one, which is out of date now
+                if (pendingState != null) skippedStates++;
+                pendingState = state;
+                if (inFlight != null && withdraw.getAsBoolean()) {
+                    superseded = inFlight;
+                    inFlight = null;
+                }
+            }
+        }
+        if (waiting != null) {
+            waiting.complete(state);
+        } else if (superseded != null && superseded.cancel(true)) {
+            synchronized (stateLock) {
+                skippedStates++;
+            }
+        }
+    }
+
+    private void onPartyClosed(IOException error) {
+        CompletableFuture<MusicState> waiting;
+        synchronized (stateLock) {
+            readerDone = true;
+            readError = error;
+            waiting = waiter;
+            waiter = null;
+        }
+        if (waiting != null) {
+            if (error != null) waiting.completeExceptionally(error);
+            else waiting.complete(null);
+        }
+    }
+
+    /**
+     * Get the next state that hasn't been applied yet. Any older ones that arrived in the meantime have already
+     * been replaced, since there's no point catching up on them one by one.
+     *
+     * If the host doesn't send anything for a while, this completes with the last state moved on to now
+     * instead, so the member's own playback is checked even while the host's isn't changing. Right after a
+     * seek, that happens as soon as the seek should have landed, so the model learns how it went.
+     *
+     * @return The newest state, which is null if the party has ended.
+     */
+    private CompletableFuture<MusicState> nextState() {
+        synchronized (stateLock) {
+            if (closed) return CompletableFuture.completedFuture(null);
+            if (pendingState != null) {
+                followUpMs = 0; // this will do just as well
+                MusicState state = pendingState;
+                pendingState = null;
+                return CompletableFuture.completedFuture(state);
+            }
+            if (readerDone) {
+                return readError != null ? CompletableFuture.failedFuture(readError) : CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<MusicState> w = new CompletableFuture<>();
+            waiter = w;
+            long delay = followUpMs > 0 ? followUpMs : RECHECK_MS;
+            followUpMs = 0;
+            if (lastState != null) {
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> recheck(w));
+            }
+            return w;
+        }
+    }
+
     /**
-     * This doesn't prompt the server, so it should be called fairly regularly.
-     * It will block until data is read and processed.
+     * Nothing came from the host in time, so check the member against where the host should be by now.
      */
-    public boolean pullMusicState() {
-        if (manager.isHost()) return false;
-
-        try {
-            String line = manager.getIn().readLine();
-            if (line == null) return false;
-            MusicState state = gson.fromJson(line, MusicState.class);
-            long clientDelay = manager.getNetworkTime() - state.timestamp;
-            System.out.println("Client delay: " + clientDelay);
-            Result r = getPlaybackInfo();
-            if (r == null) return true;
+    private void recheck(CompletableFuture<MusicState> w) {
+        MusicState state;
+        synchronized (stateLock) {
+            if (waiter != w) return; // a state arrived, or we left
+            waiter = null;
+            state = lastState;
+        }
+        long now = manager.getNetworkTime();
+        int pos = state.isPaused ? state.songPos : (int) (state.songPos + now - state.timestamp);
+        w.complete(new MusicState(now, pos, state.isPaused, state.uri));
+    }
+
+    /**
+     * Note that a read is in flight, so it can be cancelled if a newer state arrives or the party is left.
+     */
+    private <T> CompletableFuture<T> track(CompletableFuture<T> call) {
+        return track(call, () -> true);
+    }
+
+    /**
+     * Note that a call is in flight, so it can be cancelled if the party is left, or if a newer state arrives
+     * and withdraw says it's still safe to.
+     */
+    private <T> CompletableFuture<T> track(CompletableFuture<T> call, BooleanSupplier withdraw) {
+        synchronized (stateLock) {
+            if (!closed) {
+                inFlight = call;
+                this.withdraw = withdraw;
+                return call;
+            }
+        }
+        call.cancel(true);
+        return call;
+    }
+
+    /**
+     * Wait for the next state from the host, and apply it. If a newer one arrives in the meantime, whatever
+     * this is waiting on is cancelled, and this completes early so the newer one can be applied instead.
+     *
+     * @return Whether the party is still going. This never completes with false while the party is going, but
+     *         it may complete exceptionally if the host can't be synced to.
+     */
+    public CompletableFuture<Boolean> pullMusicState() {
+        if (manager.isHost()) return CompletableFuture.completedFuture(false);
+        return nextState().thenCompose(state -> {
+            if (state == null) {
+                if (syncModel != null) log.info("Sync stats %s", syncModel);
+                return CompletableFuture.completedFuture(false);
+            }
+            synchronized (stateLock) {
+                lastState = state;
+            }
+            return applyState(state).thenApply(v -> true);
+        }).handle((running, e) -> {
+            if (e == null) return running;
+            if (isSkippable(e, "sync")) return !closed;
+            log.error("Unable to sync to the host", unwrap(e));
+            throw new CompletionException(unwrap(e));
+        });
+    }
+
+    private CompletableFuture<Void> applyState(MusicState state) {
+        long clientDelay = manager.getNetworkTime() - state.timestamp;
+        return getPlaybackInfo().thenCompose(r -> {
+            if (r == null) return CompletableFuture.completedFuture(null);
             var info = r.context;
-            int hostSongPos = (int) (state.songPos + info.getTimestamp() - state.timestamp);
-            long currTime = manager.getNetworkTime();
-            System.out.printf("Offset: %dms, latency: %dms\n", currTime - info.getTimestamp(), r.oneWayLatency);
-            int posMs = Math.max(0, hostSongPos + (int) (currTime - info.getTimestamp() + r.oneWayLatency + clientDelay));
+            SyncModel model = getSyncModel(info);
+            // where the host was when our playback was read, and where it is now
+            long hostPosAtRead = state.songPos + info.getTimestamp() - state.timestamp;
+            long hostPos = state.songPos + manager.getNetworkTime() - state.timestamp;
+            // the member may have paused or changed track on their own, once our last command has had time to land
+            boolean playing = Boolean.TRUE.equals(info.getIs_playing());
+            String track = info.getItem() != null ? info.getItem().getUri() : null;
+            boolean settled = manager.getNetworkTime() >= settleUntil;
+            boolean strayed = settled && (!playing || !state.uri.equals(track));
+            Integer duration = info.getItem() != null ? info.getItem().getDurationMs() : null;
+            CompletableFuture<Void> command;
             if (state.isPaused) {
-                Auth.getAPI().pauseUsersPlayback().build().execute();
-            } else if (!state.uri.equals(lastSong)) {
-                // start new song when song changes
-                Auth.getAPI().startResumeUsersPlayback()
+                model.reset();
+                if (playing && (!paused || settled)) {
+                    command = timeCommand(() -> Auth.getAPI().pauseUsersPlayback().build().execute())
+                            .thenAccept(latency -> settle());
+                } else {
+                    command = CompletableFuture.completedFuture(null);
+                }
+            } else if (duration != null && state.uri.equals(track) && hostPos >= duration) {
+                // the host is on to its next track by now, which we'll hear about
+                command = CompletableFuture.completedFuture(null);
+            } else if (paused || !state.uri.equals(lastSong) || strayed) {
+                // start the song when it changes, or pick it back up after a pause, aimed to land on the host
+                model.reset();
+                int posMs = model.aim(hostPos);
+                command = timeCommand(() -> Auth.getAPI().startResumeUsersPlayback()
                         .uris(JsonParser.parseString(String.format("[\"%s\"]", state.uri)).getAsJsonArray())
                         .position_ms(posMs)
-                        .build().execute();
-                lastSong = state.uri;
-            } else if (paused || Math.abs(hostSongPos - info.getProgress_ms()) > 3000) {
-                // seek to correct position when unpaused or out of sync
-                Auth.getAPI().seekToPositionInCurrentlyPlayingTrack(posMs).build().execute();
+                        .build().execute()).thenAccept(latency -> {
+                    model.onSeek(latency);
+                    lastSong = state.uri;
+                    settle();
+                });
+            } else if (model.observe(info.getProgress_ms() - hostPosAtRead, r.oneWayLatency)) {
+                int posMs = model.aim(hostPos);
+                command = timeCommand(() -> Auth.getAPI().seekToPositionInCurrentlyPlayingTrack(posMs).build().execute())
+                        .thenAccept(latency -> {
+                            model.onSeek(latency);
+                            // give the seek as long again to land, then read back where it did
+                            synchronized (stateLock) {
+                                followUpMs = Math.max(1, Math.min(latency, RECHECK_MS));
+                            }
+                        });
+            } else {
+                command = CompletableFuture.completedFuture(null);
             }
-            paused = state.isPaused;
-            return true;
-        } catch (IOException | SpotifyWebApiException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+            if (log.isTraceEnabled()) {
+                log.trace("Synced delay=%dms error=%dms latency=%dms skipped=%d %s", clientDelay,
+                        info.getProgress_ms() - hostPosAtRead, r.oneWayLatency, getSkippedStates(), model);
+            } else if (model.getObservations() > 0 && model.getObservations() % STATS_INTERVAL == 0) {
+                log.debug("Sync stats %s", model);
+            }
+            return command.thenRun(() -> {
+                paused = state.isPaused;
+                firstSync.complete(null);
+            });
+        });
+    }
+
+    /**
+     * Note that a play or pause was just sent, so the device isn't mistaken for doing its own thing while
+     * Spotify catches up.
+     */
+    private void settle() {
+        settleUntil = manager.getNetworkTime() + SETTLE_MS;
+    }
+
+    /**
+     * @return The latency model and sync stats for the device currently playing, or null if nothing has
+     *         been synced yet.
+     */
+    public SyncModel getSyncModel() {
+        return syncModel;
+    }
+
+    private SyncModel getSyncModel(CurrentlyPlayingContext info) {
+        // devices can differ a lot, like a phone on wifi versus a desktop, so each gets its own model
+        String device = info.getDevice() != null && info.getDevice().getId() != null ? info.getDevice().getId() : "";
+        syncModel = syncModels.computeIfAbsent(device, d -> new SyncModel());
+        return syncModel;
+    }
+
+    /**
+     * Send a playback command. A newer state only cancels it while it's waiting for the rate limit. Once it
+     * has been sent, Spotify acts on it whether we wait or not, so it's seen through and what it did is noted.
+     *
+     * @return Half its round trip, not counting any wait for the rate limit.
+     */
+    private CompletableFuture<Long> timeCommand(ApiScheduler.Request<?> request) {
+        AtomicInteger stage = new AtomicInteger(WAITING);
+        return track(ApiScheduler.executeAsync(ApiScheduler.Priority.CONTROL, () -> {
+            // a 429 sends it round again, having been sent already
+            if (!stage.compareAndSet(WAITING, SENT) && stage.get() != SENT) throw new CancellationException();
+            long before = manager.getNetworkTime();
+            request.execute();
+            return (manager.getNetworkTime() - before) / 2;
+        }).orTimeout(COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS), () -> stage.compareAndSet(WAITING, WITHDRAWN));
+    }
+
+    /**
+     * @return How long the host should wait before calling {@link #pushMusicState()} again.
+     */
+    public long getPollDelay() {
+        long delay = schedule.getPollDelay();
+        if (unPauseTime != null) {
+            // members are being held paused for a song change, so come back in time to let them go
+            delay = Math.max(0, Math.min(delay, unPauseTime - manager.getNetworkTime()));
+        }
+        return delay;
+    }
+
+    /**
+     * @return How many states from the host were replaced by a newer one before they could be applied.
+     */
+    public long getSkippedStates() {
+        synchronized (stateLock) {
+            return skippedStates;
         }
     }
 
-    public boolean pushMusicState() {
-        if (!manager.isHost()) return false;
-        try {
-            Result r = getPlaybackInfo();
-            if (r == null) return true;
+    /**
+     * Poll the host's playback, and publish it to the party if it has changed in a way members can't predict.
+     * Call {@link #getPollDelay()} to find out when to call this again.
+     *
+     * @return Whether the party is still going.
+     */
+    public CompletableFuture<Boolean> pushMusicState() {
+        if (!manager.isHost()) return CompletableFuture.completedFuture(false);
+        synchronized (stateLock) {
+            // the reader hears about a lost connection well before the next publish would
+            if (readerDone) {
+                return readError != null ? CompletableFuture.failedFuture(readError) : CompletableFuture.completedFuture(false);
+            }
+        }
+        return getPlaybackInfo().thenApply(r -> {
+            if (r == null) {
+                schedule.onIdle();
+                return true;
+            }
             var info = r.context;
             var state = new MusicState(info.getTimestamp(), info.getProgress_ms(), !info.getIs_playing(), info.getItem().getUri());
             if (!state.uri.equals(lastSong) || (unPauseTime != null && manager.getNetworkTime() < unPauseTime)) {
@@ -99,14 +389,79 @@ public class MusicManager {
             } else if (unPauseTime != null && manager.getNetworkTime() >= unPauseTime) {
                 unPauseTime = null;
             }
-            String json = gson.toJson(state);
-            manager.getOut().println(json);
-            manager.getOut().flush();
-            return !manager.getOut().checkError();
-        } catch (IOException | SpotifyWebApiException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+            Integer duration = info.getItem().getDurationMs();
+            if (!schedule.onPoll(state, duration != null ? duration : 0, manager.getNetworkTime())) return true;
+            if (log.isTraceEnabled()) {
+                log.trace("Publishing state polls=%d publishes=%d", schedule.getPolls(), schedule.getPublishes());
+            }
+            boolean sent = manager.sendState(state);
+            if (sent) firstSync.complete(null);
+            return sent;
+        }).handle((running, e) -> {
+            if (e == null) return running;
+            if (isSkippable(e, "poll")) {
+                schedule.onIdle(); // and back off
+                return !closed;
+            }
+            log.error("Unable to send state to the party", unwrap(e));
+            throw new CompletionException(unwrap(e));
+        });
+    }
+
+    /**
+     * Stop syncing. Anything in flight is cancelled straight away, and pending calls to
+     * {@link #pullMusicState()} and {@link #pushMusicState()} complete with false.
+     */
+    public void close() {
+        CompletableFuture<?> call;
+        CompletableFuture<MusicState> waiting;
+        manager.removeListener(listener);
+        synchronized (stateLock) {
+            closed = true;
+            call = inFlight;
+            waiting = waiter;
+            inFlight = null;
+            waiter = null;
+        }
+        if (call != null) call.cancel(true);
+        if (waiting != null) waiting.complete(null);
+    }
+
+    /**
+     * @return Completes once the first state has been applied, or published if this is the host.
+     */
+    public CompletableFuture<Void> getFirstSync() {
+        return firstSync;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return True if the failure only means this round should be skipped, rather than that something's wrong.
+     */
+    private boolean isSkippable(Throwable e, String what) {
+        Throwable cause = unwrap(e);
+        if (closed || cause instanceof CancellationException) {
+            return true; // left the party, or there's a newer state to deal with
+        } else if (cause instanceof ApiScheduler.ThrottledException) {
+            // the host will send another state soon enough, so just catch up with that one
+            log.warn("Skipping a %s while rate limited: %s", what, cause.getMessage());
+            return true;
+        } else if (cause instanceof TimeoutException) {
+            log.warn("Skipping a %s, Spotify took too long to answer", what);
+            return true;
+        } else if (cause instanceof UnauthorizedException) {
+            // the token couldn't be refreshed in time, but it's still being retried in the background
+            log.warn("Skipping a %s, the access token was rejected", what);
+            return true;
         }
+        return false;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 
     private static class Result {
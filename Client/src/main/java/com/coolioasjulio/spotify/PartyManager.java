@@ -1,24 +1,85 @@
 package com.coolioasjulio.spotify;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import org.apache.commons.net.ntp.NTPUDPClient;
 import org.apache.commons.net.ntp.TimeInfo;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class PartyManager implements Closeable {
+    private static final Log log = Log.get(PartyManager.class);
     private static final String HOSTNAME = "localhost";
     private static final int PORT = 5000;
+    // how many heartbeat intervals may pass without hearing from the server before giving up on it
+    private static final int MISSED_HEARTBEATS = 3;
+    // how long to keep trying to resume after the connection drops, and how long to wait between attempts
+    private static final long RESUME_TIMEOUT_MS = 30_000;
+    private static final long MIN_RESUME_BACKOFF_MS = 250;
+    private static final long MAX_RESUME_BACKOFF_MS = 4_000;
+    // clock sync with the server: a few samples per round, a round every so often to follow drift
+    private static final int CLOCK_SAMPLES_PER_ROUND = 5;
+    private static final long CLOCK_SAMPLE_SPACING_MS = 50;
+    private static final long CLOCK_SYNC_INTERVAL_MS = 30_000;
+    private static final int CLOCK_SYNC_TIMEOUT_MS = 1000;
+    // a cached offset younger than this is used straight away, and refined in the background
+    private static final long CLOCK_CACHE_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final String CLOCK_SOURCE = HOSTNAME + ":" + PORT;
+    private static final String NTP_SOURCE = "ntp";
+
+    private static CompletableFuture<ClockCache> clockCache;
+    private static CompletableFuture<Long> ntpOffset;
 
     private static class InitialRequest {
         private boolean create;
         private String id;
+        private String resume;
+        private int protocol = BinaryProtocol.VERSION;
+    }
+
+    /**
+     * A single connection to the server. When the connection drops, it's replaced with a new one,
+     * so each thread works with whichever one it read last.
+     */
+    private static class Link {
+        private final Socket socket;
+        private final InputStream in;
+        private final PrintStream out;
+
+        private Link() throws IOException {
+            socket = new Socket(HOSTNAME, PORT);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.warn("Error closing connection to the server", e);
+            }
+        }
     }
 
     public static PartyManager createParty() {
@@ -30,10 +91,11 @@ public class PartyManager implements Closeable {
         }
         var req = new InitialRequest();
         req.create = true;
-        manager.out.println(new Gson().toJson(req));
-        manager.out.flush();
         try {
-            manager.id = manager.in.readLine();
+            String id = manager.handshake(manager.link, req);
+            if (id == null) throw new IOException("Connection closed during handshake!");
+            manager.id = id;
+            manager.startClockSync();
         } catch (IOException e) {
             manager.close();
             return null;
@@ -46,13 +108,12 @@ public class PartyManager implements Closeable {
         var req = new InitialRequest();
         req.create = false;
         req.id = code;
-        manager.out.println(new Gson().toJson(req));
-        manager.out.flush();
         try {
-            if (!manager.id.equals(manager.in.readLine())) {
+            if (!code.equals(manager.handshake(manager.link, req))) {
                 manager.close();
                 return null;
             }
+            manager.startClockSync();
         } catch (IOException e) {
             manager.close();
             throw new RuntimeException(e);
@@ -62,25 +123,64 @@ public class PartyManager implements Closeable {
 
     private boolean isHost;
     private String id;
-    private final Socket socket;
-    private BufferedReader in;
-    private PrintStream out;
-    private long networkTimeOffset;
+    private volatile Link link;
+    private volatile boolean closed;
+    private volatile boolean left; // closed on purpose, rather than because the connection was lost
+    // from NTP for servers that can't sync clocks themselves, or from the cache until the first round is in
+    private volatile long networkTimeOffset;
+    private final ClockSync clock = new ClockSync();
+    private ScheduledExecutorService clockSyncExecutor;
+    private final Queue<BinaryProtocol.Frame> unread = new ConcurrentLinkedQueue<>(); // read early by the first clock sync
+    private int protocol = 1;
+    private int heartbeatMillis; // 0 if the server doesn't send heartbeats
+    private volatile String resumeToken; // null if the server can't resume this session
+    private final Gson gson = new Gson();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Thread readerThread;
+    private int memberCount = -1; // the last count the server sent, -1 until it sends one
 
     private PartyManager(boolean isHost, String id) {
         this.isHost = isHost;
         this.id = id;
         try {
-            networkTimeOffset = calculateNetworkTimeOffset();
-            socket = new Socket(HOSTNAME, PORT);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintStream(new PrintStream(socket.getOutputStream()));
+            link = new Link();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private long calculateNetworkTimeOffset() throws IOException {
+    /**
+     * Start loading the clock cache, and asking the time server if the cache has nothing recent from it,
+     * so both are ready by the time a party is joined. This can be called any number of times.
+     *
+     * @return The offset from the time server, which is 0 if it can't be reached.
+     */
+    public static synchronized CompletableFuture<Long> warmUpClock() {
+        if (ntpOffset == null) {
+            ntpOffset = getClockCache().thenApplyAsync(cache -> {
+                Long cached = cache.get(NTP_SOURCE, CLOCK_CACHE_MAX_AGE_MS);
+                if (cached != null) return cached;
+                try {
+                    long offset = calculateNetworkTimeOffset();
+                    cache.put(NTP_SOURCE, offset);
+                    return offset;
+                } catch (IOException e) {
+                    log.warn("Unable to reach the time server, using the local clock", e);
+                    return 0L;
+                }
+            });
+        }
+        return ntpOffset;
+    }
+
+    private static synchronized CompletableFuture<ClockCache> getClockCache() {
+        if (clockCache == null) {
+            clockCache = CompletableFuture.supplyAsync(ClockCache::load);
+        }
+        return clockCache;
+    }
+
+    private static long calculateNetworkTimeOffset() throws IOException {
         NTPUDPClient client = new NTPUDPClient();
         // We want to timeout if a response takes longer than 10 seconds
         client.setDefaultTimeout(1000);
@@ -91,16 +191,136 @@ public class PartyManager implements Closeable {
         return timeInfo.getOffset() != null ? timeInfo.getOffset() : 0;
     }
 
+    /**
+     * @return The time according to the server's clock, or according to NTP with older servers.
+     */
     public long getNetworkTime() {
-        return System.currentTimeMillis() + networkTimeOffset;
+        long now = System.currentTimeMillis();
+        return now + (clock.hasEstimate() ? clock.getOffset(now) : networkTimeOffset);
     }
 
-    public void close() {
+    /**
+     * Work out the offset from the server's clock, and keep it up to date in the background. If a recent offset
+     * was cached, it's used straight away and the first round is taken in the background too. Otherwise the
+     * first round is taken here. Must be called right after the handshake, before anything else reads from
+     * the connection.
+     */
+    private void startClockSync() throws IOException {
+        if (protocol < BinaryProtocol.TIME_SYNC_VERSION) {
+            // older servers can't help, so use the time server, which was most likely asked at startup
+            try {
+                networkTimeOffset = warmUpClock().get(2 * CLOCK_SYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("No answer from the time server yet, using the local clock");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        Long cached = getClockCache().join().get(CLOCK_SOURCE, CLOCK_CACHE_MAX_AGE_MS);
+        long firstRound = CLOCK_SYNC_INTERVAL_MS;
+        if (cached != null) {
+            networkTimeOffset = cached;
+            firstRound = 0;
+            log.debug("Starting from the cached clock offset=%dms", cached);
+        } else {
+            syncClockNow();
+        }
+        clockSyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "clock-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        clockSyncExecutor.scheduleWithFixedDelay(this::clockSyncRound,
+                firstRound, CLOCK_SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take the first round of samples, reading the responses here since nothing else is reading yet.
+     * Each request waits for its response, so they don't queue up behind each other and skew the round trip.
+     * Anything else that arrives in the meantime is kept for {@link #readFrame()}.
+     */
+    private void syncClockNow() throws IOException {
+        Link l = link;
+        int timeout = l.socket.getSoTimeout();
+        l.socket.setSoTimeout(CLOCK_SYNC_TIMEOUT_MS);
+        clock.beginRound(System.currentTimeMillis());
         try {
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            for (int i = 0; i < CLOCK_SAMPLES_PER_ROUND; i++) {
+                writeFrame(l, BinaryProtocol.encodeTimeFrame(BinaryProtocol.TYPE_TIME_REQUEST, System.currentTimeMillis()));
+                BinaryProtocol.Frame frame;
+                while ((frame = BinaryProtocol.readFrame(l.in)) != null && frame.type != BinaryProtocol.TYPE_TIME_RESPONSE) {
+                    if (frame.type == BinaryProtocol.TYPE_PING) {
+                        writeFrame(l, frame.encodePong());
+                    } else {
+                        unread.add(frame);
+                    }
+                }
+                if (frame == null) break;
+                onTimeResponse(frame);
+            }
+        } catch (SocketTimeoutException e) {
+            log.warn("Timed out syncing the clock with the server");
+        } finally {
+            l.socket.setSoTimeout(timeout);
         }
+        long rtt = clock.endRound();
+        if (rtt >= 0) cacheClockOffset();
+        log.debug("Synced clock with the server offset=%dms rtt=%dms", clock.getOffset(System.currentTimeMillis()), rtt);
+    }
+
+    /**
+     * Take a round of samples in the background. The responses are picked up by whichever thread is reading.
+     */
+    private void clockSyncRound() {
+        clock.beginRound(System.currentTimeMillis());
+        try {
+            for (int i = 0; i < CLOCK_SAMPLES_PER_ROUND; i++) {
+                writeFrame(link, BinaryProtocol.encodeTimeFrame(BinaryProtocol.TYPE_TIME_REQUEST, System.currentTimeMillis()));
+                Thread.sleep(CLOCK_SAMPLE_SPACING_MS);
+            }
+            Thread.sleep(CLOCK_SYNC_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            return; // closed
+        }
+        long rtt = clock.endRound();
+        if (rtt >= 0) cacheClockOffset();
+        if (log.isTraceEnabled()) {
+            log.trace("Clock sync round offset=%dms rtt=%dms drift=%.1fppm", clock.getOffset(System.currentTimeMillis()),
+                    rtt, clock.getDrift() * 1e6);
+        }
+    }
+
+    private void cacheClockOffset() {
+        long offset = clock.getOffset(System.currentTimeMillis());
+        getClockCache().thenAccept(cache -> cache.put(CLOCK_SOURCE, offset));
+    }
+
+    private void onTimeResponse(BinaryProtocol.Frame frame) {
+        long received = System.currentTimeMillis();
+        try {
+            long[] times = frame.decodeTimes();
+            if (times.length >= 2) clock.addSample(times[0], times[1], received);
+        } catch (IllegalArgumentException e) {
+            log.warn("Malformed time response from the server");
+        }
+    }
+
+    /**
+     * Leave the party, or end it if this is the host. The server is told this is on purpose,
+     * so it doesn't hold the session open in case we come back.
+     */
+    public void close() {
+        left = true;
+        closed = true;
+        if (clockSyncExecutor != null) {
+            clockSyncExecutor.shutdownNow();
+        }
+        Link l = link;
+        if (resumeToken != null) {
+            writeFrame(l, BinaryProtocol.encodeFrame(BinaryProtocol.TYPE_BYE, new byte[0], 0, 0));
+        }
+        l.close();
     }
 
     public boolean isHost() {
@@ -111,11 +331,347 @@ public class PartyManager implements Closeable {
         return id;
     }
 
-    public BufferedReader getIn() {
-        return in;
+    /**
+     * Send a state to the party. Only the host should call this.
+     *
+     * @return True if the state was sent, false if the connection has failed.
+     */
+    public boolean sendState(MusicManager.MusicState state) {
+        if (protocol >= BinaryProtocol.BINARY_VERSION) {
+            byte[] frame = BinaryProtocol.encodeStateFrame(state);
+            Link l = link;
+            // if the connection dropped, try again once it has been resumed
+            return writeFrame(l, frame) || (reconnect(l) && writeFrame(link, frame));
+        } else {
+            PrintStream out = link.out;
+            synchronized (out) {
+                out.println(gson.toJson(state));
+                out.flush();
+                return !out.checkError();
+            }
+        }
+    }
+
+    /**
+     * Gets the messages the server sends to the party. They're all delivered on the reader thread, in the order
+     * they arrived, so a listener should hand anything slow off to another thread.
+     */
+    public interface Listener {
+        /**
+         * The host's next state. Only members get these.
+         */
+        default void onState(MusicManager.MusicState state) {}
+
+        /**
+         * How many members are in the party now. Only the host gets these. A listener added after the count
+         * was last sent gets that one straight away.
+         */
+        default void onMemberCount(int members) {}
+
+        /**
+         * Nothing more will arrive, because the party has ended, we left, or the connection was lost for good.
+         *
+         * @param error Why the connection was lost, or null if the party ended or we left.
+         */
+        default void onClosed(IOException error) {}
+    }
+
+    /**
+     * Start delivering messages to a listener. The reader thread is started with the first one, so anything that
+     * arrived before then is waiting to be delivered.
+     */
+    public void addListener(Listener listener) {
+        int members;
+        synchronized (listeners) {
+            listeners.add(listener);
+            members = memberCount;
+            if (readerThread == null) {
+                readerThread = new Thread(this::readTask, "party-reader");
+                readerThread.setDaemon(true);
+                readerThread.start();
+            }
+        }
+        if (members >= 0) listener.onMemberCount(members);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Read everything the server sends, and hand each message to the listeners by its type. This is the only
+     * thread that reads from the connection once the handshake and the first clock sync are done.
+     */
+    private void readTask() {
+        IOException error = null;
+        try {
+            if (protocol >= BinaryProtocol.BINARY_VERSION) {
+                BinaryProtocol.Frame frame;
+                while ((frame = readFrame()) != null) {
+                    dispatch(frame);
+                }
+            } else {
+                String line;
+                while ((line = readLine(link.in)) != null) {
+                    dispatch(line);
+                }
+            }
+        } catch (IOException e) {
+            if (!left) error = e;
+        }
+        if (error != null) log.warn("Lost the connection to the server", error);
+        for (Listener l : listeners) {
+            try {
+                l.onClosed(error);
+            } catch (RuntimeException e) {
+                log.error("Error in a party listener", e);
+            }
+        }
+    }
+
+    private void dispatch(BinaryProtocol.Frame frame) {
+        try {
+            switch (frame.type) {
+                case BinaryProtocol.TYPE_STATE:
+                    onState(frame.decodeState());
+                    break;
+                case BinaryProtocol.TYPE_MEMBER_COUNT:
+                    onMemberCount(frame.decodeMemberCount());
+                    break;
+                default:
+                    // from a newer server, most likely. Frames are self-contained, so it's safe to skip
+                    log.debug("Ignoring a frame of type %d", frame.type);
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring a malformed frame of type %d from the server", frame.type);
+        }
     }
 
-    public PrintStream getOut() {
-        return out;
+    /**
+     * Before the binary protocol, the server only sent one kind of line to each side: states to members, and
+     * member counts to the host.
+     */
+    private void dispatch(String line) {
+        try {
+            if (isHost) {
+                onMemberCount(Integer.parseInt(line.strip()));
+            } else {
+                onState(gson.fromJson(line, MusicManager.MusicState.class));
+            }
+        } catch (JsonParseException | NumberFormatException e) {
+            log.warn("Ignoring a malformed line from the server");
+        }
+    }
+
+    private void onState(MusicManager.MusicState state) {
+        if (state == null) return;
+        for (Listener l : listeners) {
+            try {
+                l.onState(state);
+            } catch (RuntimeException e) {
+                log.error("Error in a party listener", e);
+            }
+        }
+    }
+
+    private void onMemberCount(int members) {
+        synchronized (listeners) {
+            memberCount = members;
+        }
+        for (Listener l : listeners) {
+            try {
+                l.onMemberCount(members);
+            } catch (RuntimeException e) {
+                log.error("Error in a party listener", e);
+            }
+        }
+    }
+
+    /**
+     * Read the next frame, answering any pings and taking in any clock samples along the way. If the connection
+     * drops, or the server stops responding, the session is resumed on a new connection if possible.
+     *
+     * @return The frame, or null if the party has ended or we left.
+     * @throws IOException If the connection was lost and couldn't be recovered.
+     */
+    private BinaryProtocol.Frame readFrame() throws IOException {
+        while (true) {
+            BinaryProtocol.Frame frame = unread.poll();
+            if (frame != null) return frame;
+            Link l = link;
+            try {
+                frame = BinaryProtocol.readFrame(l.in);
+            } catch (SocketTimeoutException e) {
+                log.warn("No heartbeat from the server in %dms", l.socket.getSoTimeout());
+                if (reconnect(l)) continue;
+                if (left) return null;
+                // so that the other thread notices too
+                closed = true;
+                l.close();
+                throw e;
+            } catch (IOException e) {
+                if (reconnect(l)) continue;
+                if (left) return null;
+                throw e;
+            }
+            if (frame == null) {
+                if (reconnect(l)) continue;
+                // a server that holds sessions says goodbye when the party ends, so this one was lost
+                if (left || resumeToken == null) return null;
+                throw new EOFException("The server hung up");
+            }
+            if (frame.type == BinaryProtocol.TYPE_BYE) {
+                log.info("The party has ended");
+                closed = true;
+                l.close();
+                return null;
+            }
+            if (frame.type == BinaryProtocol.TYPE_TIME_RESPONSE) {
+                onTimeResponse(frame);
+                continue;
+            }
+            if (frame.type != BinaryProtocol.TYPE_PING) return frame;
+            writeFrame(l, frame.encodePong());
+        }
+    }
+
+    /**
+     * Write a frame. The sync thread, the reader and the clock sync all write, so frames must not interleave.
+     */
+    private static boolean writeFrame(Link l, byte[] frame) {
+        PrintStream out = l.out;
+        synchronized (out) {
+            out.write(frame, 0, frame.length);
+            out.flush();
+            return !out.checkError();
+        }
+    }
+
+    /**
+     * Replace a connection that has dropped by resuming the session on a new one. Both of the host's threads
+     * may notice the same drop, so only the first one to get here reconnects, and the other uses the result.
+     * The clock offset is kept, since it's a property of this machine and not of the connection.
+     *
+     * @param failed The connection that dropped.
+     * @return True if there's a new connection to use.
+     */
+    private synchronized boolean reconnect(Link failed) {
+        if (link != failed) return !closed;
+        if (closed || resumeToken == null) return false;
+        failed.close();
+        log.info("Lost the connection to the server, resuming");
+        long deadline = System.currentTimeMillis() + RESUME_TIMEOUT_MS;
+        long backoff = MIN_RESUME_BACKOFF_MS;
+        while (!closed && System.currentTimeMillis() < deadline) {
+            try {
+                if (resume()) return true;
+                if (isHost) break; // the party is gone
+                if (rejoin()) return true;
+                break;
+            } catch (IOException e) {
+                log.debug("Unable to resume: %s", e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_RESUME_BACKOFF_MS);
+        }
+        log.warn("Unable to resume the session, disconnecting");
+        closed = true;
+        return false;
+    }
+
+    /**
+     * @return False if the server turned the session down.
+     */
+    private boolean resume() throws IOException {
+        Link l = new Link();
+        var req = new InitialRequest();
+        req.id = id;
+        req.resume = resumeToken;
+        if (!id.equals(handshake(l, req))) {
+            l.close();
+            return false;
+        }
+        link = l;
+        log.info("Resumed the session");
+        return true;
+    }
+
+    /**
+     * A member whose session has expired can still join the party again as a new member.
+     */
+    private boolean rejoin() throws IOException {
+        Link l = new Link();
+        var req = new InitialRequest();
+        req.id = id;
+        if (!id.equals(handshake(l, req))) {
+            l.close();
+            return false;
+        }
+        link = l;
+        log.info("Rejoined the party");
+        return true;
+    }
+
+    /**
+     * Send the initial request and read the acknowledgement.
+     *
+     * @return The party id, or null if the server hung up or turned the request down.
+     */
+    private String handshake(Link l, InitialRequest req) throws IOException {
+        l.out.println(gson.toJson(req));
+        l.out.flush();
+        String ack = readLine(l.in);
+        return ack == null ? null : parseAcknowledgement(l, ack);
+    }
+
+    /**
+     * The acknowledgement is the party id, followed by the protocol version if the server supports a newer one,
+     * followed by the heartbeat interval from version 3 on, followed by the resume token from version 4 on.
+     * Servers that predate the binary protocol just send the id, in which case we stick with JSON.
+     *
+     * @return The party id, or null if the server sent an error instead.
+     */
+    private String parseAcknowledgement(Link l, String ack) throws IOException {
+        if (ack.startsWith("ERROR")) {
+            // the rest is a status code, not a version, so none of it applies
+            log.warn("The server turned the request down: %s", ack.strip());
+            return null;
+        }
+        String[] parts = ack.strip().split(" ");
+        if (parts.length > 1) {
+            try {
+                protocol = Math.min(Integer.parseInt(parts[1]), BinaryProtocol.VERSION);
+            } catch (NumberFormatException ignored) {}
+        }
+        if (parts.length > 2 && protocol >= BinaryProtocol.HEARTBEAT_VERSION) {
+            try {
+                heartbeatMillis = Integer.parseInt(parts[2]);
+                l.socket.setSoTimeout(MISSED_HEARTBEATS * heartbeatMillis);
+            } catch (NumberFormatException ignored) {}
+        }
+        // the server leaves the token out if it doesn't hold sessions open
+        resumeToken = parts.length > 3 && protocol >= BinaryProtocol.RESUME_VERSION ? parts[3] : null;
+        return parts[0];
+    }
+
+    /**
+     * Read a line without buffering past it, since binary frames may follow.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        String s = line.toString(StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
     }
 }
@@ -7,7 +7,7 @@ public class Playground2 {
         MusicManager mm = new MusicManager(pm);
         boolean running = true;
         while (running) {
-            running = mm.pushMusicState();
+            running = mm.pushMusicState().join();
             try {
                 Thread.sleep(1000);
             } catch (InterruptedException e) {
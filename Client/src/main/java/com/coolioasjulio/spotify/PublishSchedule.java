@@ -0,0 +1,86 @@
+package com.coolioasjulio.spotify;
+
+/**
+ * Decides when a host needs to tell the party about its playback, and how soon to look at it again.
+ *
+ * Between updates, members extrapolate the position from the last state they got, so the host only has to
+ * publish when that extrapolation stops being right: the track changes, playback pauses or resumes, or the
+ * position jumps from a seek or drifts too far. A keyframe is still sent every so often so members can
+ * correct their own drift.
+ *
+ * Polling speeds up after a change, since changes tend to come in bursts while someone is using the player,
+ * and backs off while playback is steady. It also comes back just after the track is due to end.
+ */
+class PublishSchedule {
+    static final long MIN_POLL_MS = 250;
+    static final long MAX_POLL_MS = 1000;
+    static final long KEYFRAME_MS = 10_000;
+    // members start correcting once they're SyncModel.ENTER_THRESHOLD_MS out, so stay inside that
+    static final long DRIFT_THRESHOLD_MS = 200;
+    private static final long TRACK_END_MARGIN_MS = 100;
+
+    private MusicManager.MusicState published;
+    private long publishedAt;
+    private long pollDelay = MIN_POLL_MS;
+    private long polls, publishes;
+
+    /**
+     * Look at the host's latest playback, and decide whether the party needs to hear about it.
+     *
+     * @param state      The host's playback.
+     * @param durationMs The length of the track, or 0 if unknown.
+     * @param now        The current network time.
+     * @return True if the state should be published.
+     */
+    public boolean onPoll(MusicManager.MusicState state, int durationMs, long now) {
+        polls++;
+        boolean publish = isChange(state) || now - publishedAt >= KEYFRAME_MS;
+        if (publish) {
+            published = state;
+            publishedAt = now;
+            publishes++;
+            pollDelay = MIN_POLL_MS;
+        } else {
+            pollDelay = Math.min(pollDelay * 2, MAX_POLL_MS);
+        }
+        if (!state.isPaused && durationMs > 0) {
+            // don't sleep through the start of the next track
+            long untilEnd = durationMs - state.songPos + TRACK_END_MARGIN_MS;
+            pollDelay = Math.max(MIN_POLL_MS, Math.min(pollDelay, untilEnd));
+        }
+        return publish;
+    }
+
+    /**
+     * Note that there's nothing playing, so there's nothing to publish.
+     */
+    public void onIdle() {
+        polls++;
+        pollDelay = MAX_POLL_MS;
+    }
+
+    /**
+     * @return How long to wait before polling again.
+     */
+    public long getPollDelay() {
+        return pollDelay;
+    }
+
+    public long getPolls() {
+        return polls;
+    }
+
+    public long getPublishes() {
+        return publishes;
+    }
+
+    private boolean isChange(MusicManager.MusicState state) {
+        if (published == null) return true;
+        if (state.isPaused != published.isPaused) return true;
+        if (state.uri == null ? published.uri != null : !state.uri.equals(published.uri)) return true;
+        // where members think the track is by now
+        long expected = published.isPaused ? published.songPos
+                : published.songPos + (state.timestamp - published.timestamp);
+        return Math.abs(state.songPos - expected) > DRIFT_THRESHOLD_MS;
+    }
+}
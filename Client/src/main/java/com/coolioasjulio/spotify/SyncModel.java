@@ -0,0 +1,156 @@
+package com.coolioasjulio.spotify;
+
+/**
+ * Learns how a member's playback device responds to commands, so it can be kept close to the host without
+ * seeking over and over.
+ *
+ * Two things are tracked as moving averages: how long a command takes to reach Spotify, and how far from
+ * its target a seek actually lands, which covers the rest of the delay on the way to the device. A seek is
+ * aimed ahead by the first and back by the second, and the landing error seen after each one refines it.
+ *
+ * Correcting is hysteretic. Nothing happens until the member is clearly out of sync, and then it's seeked
+ * until it's within a much tighter tolerance or a few attempts have gone by, so measurement noise near
+ * the threshold doesn't set off a seek every time.
+ */
+class SyncModel {
+    static final long ENTER_THRESHOLD_MS = 300; // start correcting past this
+    static final long MIN_TOLERANCE_MS = 60; // and aim to get within this
+    static final int MAX_CORRECTIONS = 3; // seeks in a row before giving up until it gets worse again
+    private static final double ALPHA = 0.3;
+    private static final long MAX_LANDING_ERROR_MS = 2000; // anything further off than this is a bad observation
+
+    private double commandLatency = -1; // ms, -1 until the first command
+    private double seekBias; // ms the member lands ahead of where it was aimed
+    private double readNoise = MIN_TOLERANCE_MS; // ms of uncertainty in each observation
+    private boolean seekPending; // if the next observation shows where the last seek landed
+    private boolean correcting;
+    private int corrections;
+
+    private long observations, seeks, inTolerance;
+    private double errorSum, absErrorSum, maxAbsError;
+
+    /**
+     * Note how far the member was from the host, and decide whether to seek.
+     *
+     * @param errorMs      How far the member is ahead of the host, in milliseconds.
+     * @param readLatency  Half the round trip of the playback read the error came from.
+     * @return True if the member should seek.
+     */
+    public boolean observe(long errorMs, long readLatency) {
+        readNoise += ALPHA * (readLatency - readNoise);
+        recordError(errorMs);
+        if (seekPending) {
+            seekPending = false;
+            // the last seek already allowed for the bias, so what's left is how far off the bias was
+            if (Math.abs(errorMs) <= MAX_LANDING_ERROR_MS) seekBias += ALPHA * errorMs;
+        }
+
+        long abs = Math.abs(errorMs);
+        if (!correcting) {
+            if (abs <= ENTER_THRESHOLD_MS) return false;
+            correcting = true;
+            corrections = 0;
+        }
+        if (abs <= getTolerance() || corrections >= MAX_CORRECTIONS) {
+            correcting = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param hostPos Where the host is now, in milliseconds.
+     * @return Where to seek to, so the member lands on the host.
+     */
+    public int aim(long hostPos) {
+        long lead = Math.round(Math.max(0, commandLatency) - seekBias);
+        return (int) Math.max(0, hostPos + lead);
+    }
+
+    /**
+     * Note that a seek was sent. Only seeks aimed with {@link #aim(long)} should be reported here.
+     *
+     * @param latencyMs Half the round trip of the command.
+     */
+    public void onSeek(long latencyMs) {
+        commandLatency = commandLatency < 0 ? latencyMs : commandLatency + ALPHA * (latencyMs - commandLatency);
+        seekPending = true;
+        seeks++;
+        if (correcting) corrections++;
+    }
+
+    /**
+     * Note that playback changed in a way that has nothing to do with the last seek, like a pause or a new
+     * track, so the next observation says nothing about where it landed.
+     */
+    public void reset() {
+        seekPending = false;
+        correcting = false;
+    }
+
+    /**
+     * @return How close to the host counts as in sync. Observations are only so precise, so there's no
+     *         point trying to get closer than that.
+     */
+    public long getTolerance() {
+        return Math.max(MIN_TOLERANCE_MS, Math.round(2 * readNoise));
+    }
+
+    public double getCommandLatency() {
+        return Math.max(0, commandLatency);
+    }
+
+    public double getSeekBias() {
+        return seekBias;
+    }
+
+    public long getObservations() {
+        return observations;
+    }
+
+    public long getSeeks() {
+        return seeks;
+    }
+
+    /**
+     * @return The mean distance from the host, in milliseconds.
+     */
+    public double getMeanAbsError() {
+        return observations == 0 ? 0 : absErrorSum / observations;
+    }
+
+    /**
+     * @return The mean signed error, which is positive if the member tends to be ahead of the host.
+     */
+    public double getMeanError() {
+        return observations == 0 ? 0 : errorSum / observations;
+    }
+
+    public double getMaxAbsError() {
+        return maxAbsError;
+    }
+
+    /**
+     * @return The fraction of observations that were within tolerance.
+     */
+    public double getInSyncRatio() {
+        return observations == 0 ? 0 : (double) inTolerance / observations;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("observations=%d seeks=%d meanAbsError=%.0fms meanError=%.0fms maxAbsError=%.0fms "
+                        + "inSync=%.0f%% tolerance=%dms commandLatency=%.0fms seekBias=%.0fms",
+                observations, seeks, getMeanAbsError(), getMeanError(), maxAbsError, 100 * getInSyncRatio(),
+                getTolerance(), getCommandLatency(), seekBias);
+    }
+
+    private void recordError(long errorMs) {
+        long abs = Math.abs(errorMs);
+        observations++;
+        errorSum += errorMs;
+        absErrorSum += abs;
+        maxAbsError = Math.max(maxAbsError, abs);
+        if (abs <= getTolerance()) inTolerance++;
+    }
+}
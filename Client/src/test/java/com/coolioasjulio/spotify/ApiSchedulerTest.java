@@ -0,0 +1,295 @@
+package com.coolioasjulio.spotify;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.wrapper.spotify.exceptions.SpotifyWebApiException;
+import com.wrapper.spotify.model_objects.miscellaneous.CurrentlyPlayingContext;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the scheduler against a local stand-in for the Web API, which the client is pointed at with
+ * spotify.api.host. The stand-in answers with whatever each test needs, including 429s.
+ */
+class ApiSchedulerTest {
+    private static final String PLAYBACK = "/v1/me/player";
+    private static final String PAUSE = "/v1/me/player/pause";
+    private static final int RETRY_AFTER_SECONDS = 1;
+    private static final int TIMEOUT_SECONDS = 15;
+
+    private static HttpServer server;
+    private static ExecutorService serverThreads;
+    private static volatile Responder responder;
+    private static final List<Hit> hits = new ArrayList<>();
+    private static final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    /**
+     * How the stand-in answers a request.
+     */
+    @FunctionalInterface
+    private interface Responder {
+        /**
+         * @param n How many requests to this path came before this one.
+         * @return The status to answer with.
+         */
+        int respond(String path, int n) throws InterruptedException;
+    }
+
+    private static class Hit {
+        private final String path;
+        private final long nanos;
+
+        private Hit(String path, long nanos) {
+            this.path = path;
+            this.nanos = nanos;
+        }
+    }
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/", ApiSchedulerTest::handle);
+        server.start();
+
+        // read when the classes load, so this has to happen before anything touches them
+        System.setProperty("spotify.api.scheme", "http");
+        System.setProperty("spotify.api.host", server.getAddress().getHostString());
+        System.setProperty("spotify.api.port", String.valueOf(server.getAddress().getPort()));
+        // a token every 100ms, so the order calls are let through in is the order they arrive in
+        System.setProperty("spotify.api.rate", "10");
+        System.setProperty("spotify.api.burst", "1");
+        Log.setLevel(Log.Level.ERROR);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @BeforeEach
+    void reset() throws Exception {
+        responder = (path, n) -> 200;
+        // wait out anything the last test left behind, like a Retry-After
+        ApiScheduler.execute(ApiScheduler.Priority.CONTROL, ApiSchedulerTest::pause);
+        synchronized (hits) {
+            hits.clear();
+        }
+        counts.clear();
+    }
+
+    @AfterEach
+    void stopCallers() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    void waitsForRetryAfterBeforeTryingAgain() throws Exception {
+        responder = (path, n) -> n == 0 ? 429 : 200;
+        long throttled = ApiScheduler.getThrottledCount();
+
+        ApiScheduler.execute(ApiScheduler.Priority.CONTROL, ApiSchedulerTest::pause);
+
+        List<Hit> h = hits();
+        assertEquals(2, h.size());
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(h.get(1).nanos - h.get(0).nanos);
+        assertTrue(waitedMs >= TimeUnit.SECONDS.toMillis(RETRY_AFTER_SECONDS), "retried after " + waitedMs + "ms");
+        assertEquals(throttled + 1, ApiScheduler.getThrottledCount());
+    }
+
+    @Test
+    void givesUpWithThrottledExceptionWhenStillLimited() throws Exception {
+        responder = (path, n) -> 429;
+
+        assertThrows(ApiScheduler.ThrottledException.class,
+                () -> ApiScheduler.execute(ApiScheduler.Priority.CONTROL, ApiSchedulerTest::pause));
+        assertEquals(4, hits().size(), "the first try and three retries");
+
+        // an async call fails the same way, rather than with whatever the library threw
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> ApiScheduler.executeAsync(ApiScheduler.Priority.READ, ApiSchedulerTest::playback)
+                        .get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ApiScheduler.ThrottledException, e.getCause().toString());
+    }
+
+    @Test
+    void controlGoesBeforeReadsWaitingOnTheLimit() throws Exception {
+        responder = (path, n) -> path.equals(PLAYBACK) && n == 0 ? 429 : 200;
+        long throttled = ApiScheduler.getThrottledCount();
+
+        List<Future<?>> calls = new ArrayList<>();
+        calls.add(callers.submit(() -> ApiScheduler.execute(ApiScheduler.Priority.READ, ApiSchedulerTest::playback)));
+        while (ApiScheduler.getThrottledCount() == throttled) {
+            Thread.sleep(10);
+        }
+        // everything from now on waits for the Retry-After
+        for (int i = 0; i < 3; i++) {
+            calls.add(callers.submit(() -> ApiScheduler.execute(ApiScheduler.Priority.READ, ApiSchedulerTest::playback)));
+        }
+        Thread.sleep(100);
+        calls.add(callers.submit(() -> ApiScheduler.execute(ApiScheduler.Priority.CONTROL, ApiSchedulerTest::pause)));
+        for (Future<?> call : calls) {
+            call.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        List<Hit> h = hits();
+        assertEquals(6, h.size());
+        assertEquals(PLAYBACK, h.get(0).path);
+        assertEquals(PAUSE, h.get(1).path, "the command should be let through first once the limit lifts");
+    }
+
+    @Test
+    void overlappingReadsShareOneRequest() throws Exception {
+        responder = (path, n) -> {
+            Thread.sleep(300);
+            return 200;
+        };
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<CurrentlyPlayingContext>> reads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            reads.add(callers.submit(() -> {
+                start.await();
+                return ApiScheduler.executeShared("playback", ApiScheduler.Priority.READ, ApiSchedulerTest::playback);
+            }));
+        }
+        start.countDown();
+        CurrentlyPlayingContext first = reads.get(0).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(first);
+        for (Future<CurrentlyPlayingContext> read : reads) {
+            assertSame(first, read.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertEquals(1, hits().size());
+    }
+
+    @Test
+    void aCancelledReadDoesntFailTheOnesSharingIt() throws Exception {
+        responder = (path, n) -> {
+            if (n == 0) Thread.sleep(1000);
+            return 200;
+        };
+
+        CompletableFuture<CurrentlyPlayingContext> leader =
+                ApiScheduler.executeSharedAsync("playback", ApiScheduler.Priority.READ, ApiSchedulerTest::playback);
+        awaitHits(1);
+        Future<CurrentlyPlayingContext> follower = callers.submit(
+                () -> ApiScheduler.executeShared("playback", ApiScheduler.Priority.READ, ApiSchedulerTest::playback));
+        Thread.sleep(100);
+        leader.cancel(true);
+
+        // the follower makes the request itself, rather than failing along with the leader
+        assertNotNull(follower.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, hits().size());
+    }
+
+    @Test
+    void anInterruptedReadStopsWaitingForTheOneItShares() throws Exception {
+        responder = (path, n) -> {
+            Thread.sleep(1000);
+            return 200;
+        };
+
+        CompletableFuture<CurrentlyPlayingContext> leader =
+                ApiScheduler.executeSharedAsync("playback", ApiScheduler.Priority.READ, ApiSchedulerTest::playback);
+        awaitHits(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicReference<Boolean> interrupted = new AtomicReference<>();
+        Thread follower = new Thread(() -> {
+            try {
+                ApiScheduler.executeShared("playback", ApiScheduler.Priority.READ, ApiSchedulerTest::playback);
+            } catch (Exception e) {
+                failure.set(e);
+            }
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        follower.start();
+        Thread.sleep(100);
+        follower.interrupt();
+        follower.join(500);
+
+        assertFalse(follower.isAlive(), "the follower kept waiting after it was interrupted");
+        assertTrue(failure.get() instanceof ApiScheduler.ThrottledException, String.valueOf(failure.get()));
+        assertEquals(Boolean.TRUE, interrupted.get(), "the interrupt should be passed on");
+        // and the leader is none the worse for it
+        assertNotNull(leader.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, hits().size());
+    }
+
+    private static String pause() throws IOException, SpotifyWebApiException {
+        return Auth.getAPI().pauseUsersPlayback().build().execute();
+    }
+
+    private static CurrentlyPlayingContext playback() throws IOException, SpotifyWebApiException {
+        return Auth.getAPI().getInformationAboutUsersCurrentPlayback().build().execute();
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        synchronized (hits) {
+            hits.add(new Hit(path, System.nanoTime()));
+        }
+        int n = counts.computeIfAbsent(path, p -> new AtomicInteger()).getAndIncrement();
+        try {
+            int status = responder.respond(path, n);
+            if (status == 429) exchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            byte[] body = new byte[0];
+            if (status == 200 && path.equals(PLAYBACK)) {
+                body = "{\"is_playing\":true,\"progress_ms\":0}".getBytes(StandardCharsets.UTF_8);
+            } else if (status == 200) {
+                status = 204; // like the player commands
+            }
+            exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            exchange.close();
+        }
+    }
+
+    private static List<Hit> hits() {
+        synchronized (hits) {
+            return new ArrayList<>(hits);
+        }
+    }
+
+    private static void awaitHits(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (hits().size() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
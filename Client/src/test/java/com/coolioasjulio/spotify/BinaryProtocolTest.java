@@ -0,0 +1,132 @@
+package com.coolioasjulio.spotify;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryProtocolTest {
+    private static final String TRACK_URI = "spotify:track:3bjLCKsBNSFyx6Gfsb7X4h";
+    private static final String EPISODE_URI = "spotify:episode:512ojhOuo1ktJprKbVcKyQ";
+
+    @Test
+    void statesRoundTrip() throws IOException {
+        for (String uri : new String[]{TRACK_URI, EPISODE_URI, "spotify:local:\u00dcn\u00efc\u00f6d\u00e9:::180", null}) {
+            assertRoundTrip(new MusicManager.MusicState(1_585_779_930_707L, 61_234, false, uri));
+            assertRoundTrip(new MusicManager.MusicState(1_585_779_930_707L, 61_234, true, uri));
+        }
+    }
+
+    @Test
+    void negativePositionsRoundTrip() throws IOException {
+        // a host that seeks back right after starting a track can report slightly before zero
+        for (int pos : new int[]{-1, -250, Integer.MIN_VALUE, Integer.MAX_VALUE, 0}) {
+            assertRoundTrip(new MusicManager.MusicState(1_585_779_930_707L, pos, false, TRACK_URI));
+        }
+    }
+
+    @Test
+    void framesAreReadOneAtATime() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryProtocol.encodeStateFrame(new MusicManager.MusicState(1, 2, false, TRACK_URI)));
+        out.write(BinaryProtocol.encodeTimeFrame(BinaryProtocol.TYPE_TIME_RESPONSE, 3, 1_585_779_930_707L));
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+
+        assertEquals(TRACK_URI, BinaryProtocol.readFrame(in).decodeState().uri);
+        BinaryProtocol.Frame time = BinaryProtocol.readFrame(in);
+        assertEquals(BinaryProtocol.TYPE_TIME_RESPONSE, time.type);
+        assertArrayEquals(new long[]{3, 1_585_779_930_707L}, time.decodeTimes());
+        // the server hung up between frames
+        assertNull(BinaryProtocol.readFrame(in));
+    }
+
+    @Test
+    void oversizedFrameLengthsAreRejected() {
+        ByteArrayOutputStream tooBig = new ByteArrayOutputStream();
+        writeVarLong(tooBig, BinaryProtocol.MAX_FRAME_LENGTH + 1);
+        tooBig.write(BinaryProtocol.TYPE_STATE);
+        assertThrows(IOException.class, () -> BinaryProtocol.readFrame(new ByteArrayInputStream(tooBig.toByteArray())));
+
+        // a length that doesn't end before it would overflow an int
+        byte[] endless = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01};
+        assertThrows(IOException.class, () -> BinaryProtocol.readFrame(new ByteArrayInputStream(endless)));
+
+        byte[] empty = {0};
+        assertThrows(IOException.class, () -> BinaryProtocol.readFrame(new ByteArrayInputStream(empty)));
+    }
+
+    @Test
+    void truncatedFramesAreRejected() {
+        byte[] frame = BinaryProtocol.encodeStateFrame(new MusicManager.MusicState(1_585_779_930_707L, 61_234, false, EPISODE_URI));
+        // cut off in the middle of the frame, rather than between frames
+        for (int length = 1; length < frame.length; length++) {
+            ByteArrayInputStream in = new ByteArrayInputStream(frame, 0, length);
+            assertThrows(EOFException.class, () -> BinaryProtocol.readFrame(in), "cut at " + length);
+        }
+        byte[] halfLength = {(byte) 0x80};
+        assertThrows(EOFException.class, () -> BinaryProtocol.readFrame(new ByteArrayInputStream(halfLength)));
+    }
+
+    @Test
+    void oversizedUriLengthsAreRejected() {
+        byte[] uri = EPISODE_URI.getBytes(StandardCharsets.UTF_8);
+        // past the end of the payload, and too big for an int, which mustn't wrap round to something that fits
+        for (long length : new long[]{uri.length + 1, Integer.MAX_VALUE, (1L << 32) + uri.length, 1L << 62, -1}) {
+            byte[] payload = statePayload(length, uri);
+            assertThrows(IllegalArgumentException.class,
+                    () -> BinaryProtocol.decodeState(payload, 0, payload.length), "length " + length);
+        }
+    }
+
+    @Test
+    void truncatedPayloadsAreRejected() {
+        byte[] frame = BinaryProtocol.encodeStateFrame(new MusicManager.MusicState(1_585_779_930_707L, 61_234, false, EPISODE_URI));
+        byte[] track = BinaryProtocol.encodeStateFrame(new MusicManager.MusicState(1_585_779_930_707L, 61_234, false, TRACK_URI));
+        // everything after the length and type, cut off at every point
+        for (byte[] f : new byte[][]{frame, track}) {
+            for (int length = 0; length < f.length - 2; length++) {
+                int cut = length;
+                assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decodeState(f, 2, cut), "cut at " + cut);
+            }
+        }
+    }
+
+    private static void assertRoundTrip(MusicManager.MusicState state) throws IOException {
+        BinaryProtocol.Frame frame = BinaryProtocol.readFrame(new ByteArrayInputStream(BinaryProtocol.encodeStateFrame(state)));
+        assertEquals(BinaryProtocol.TYPE_STATE, frame.type);
+        MusicManager.MusicState decoded = frame.decodeState();
+        assertEquals(state.timestamp, decoded.timestamp);
+        assertEquals(state.songPos, decoded.songPos);
+        assertEquals(state.isPaused, decoded.isPaused);
+        assertEquals(state.uri, decoded.uri);
+    }
+
+    /**
+     * A state payload with a full uri, whose length prefix says whatever it's told to.
+     */
+    private static byte[] statePayload(long uriLength, byte[] uri) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0); // flags: playing, with a full uri
+        writeVarLong(out, 1_585_779_930_707L);
+        writeVarLong(out, 61_234 << 1);
+        writeVarLong(out, uriLength);
+        out.write(uri, 0, uri.length);
+        return out.toByteArray();
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,86 @@
+package com.coolioasjulio.spotify;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClockSyncTest {
+    private static final long OFFSET_MS = 1000; // how far the server's clock is ahead of ours
+    private static final long ROUND_INTERVAL_MS = 30_000;
+    private static final double ERROR = 1e-9;
+
+    private final ClockSync sync = new ClockSync();
+
+    @Test
+    void keepsTheSampleWithTheSmallestRoundTrip() {
+        sync.beginRound(0);
+        // the response sat in a queue on the way back, so the server seems to be behind
+        sync.addSample(100, 210 + OFFSET_MS, 400);
+        // a clean round trip, with the server read halfway through
+        sync.addSample(500, 505 + OFFSET_MS, 510);
+        // the request sat in a queue on the way there, so the server seems to be ahead
+        sync.addSample(600, 780 + OFFSET_MS, 790);
+        assertEquals(10, sync.endRound());
+
+        assertEquals(OFFSET_MS, sync.getOffset(510));
+        assertEquals(3, sync.getSampleCount());
+        assertEquals(0.0, sync.getDrift());
+    }
+
+    @Test
+    void ignoresSamplesOutsideTheRound() {
+        assertFalse(sync.hasEstimate());
+        assertEquals(0, sync.getOffset(0));
+
+        sync.beginRound(1000);
+        sync.addSample(900, 905 + OFFSET_MS, 1010); // a late answer to an earlier round
+        sync.addSample(1020, 1025 + OFFSET_MS, 1010); // came back before it was sent
+        assertEquals(-1, sync.endRound());
+        assertFalse(sync.hasEstimate());
+
+        sync.addSample(2000, 2005 + OFFSET_MS, 2010); // no round going
+        assertFalse(sync.hasEstimate());
+        assertEquals(0, sync.getSampleCount());
+    }
+
+    @Test
+    void fitsDriftOnceThereIsEnoughHistory() {
+        double ppm = 100e-6;
+        runRounds(sync, 2, ppm);
+        // not long enough to tell drift from noise
+        assertEquals(0.0, sync.getDrift());
+
+        runRounds(sync, 4, ppm);
+        assertEquals(ppm, sync.getDrift(), ERROR);
+        // carried forward between rounds
+        long later = 10 * ROUND_INTERVAL_MS;
+        assertEquals(Math.round(OFFSET_MS + ppm * later), sync.getOffset(later), 1);
+        assertTrue(sync.getOffset(later) > sync.getOffset(6 * ROUND_INTERVAL_MS));
+    }
+
+    @Test
+    void clampsDrift() {
+        runRounds(sync, 6, 5000e-6);
+        assertEquals(500e-6, sync.getDrift(), ERROR);
+
+        ClockSync backwards = new ClockSync();
+        runRounds(backwards, 6, -5000e-6);
+        assertEquals(-500e-6, backwards.getDrift(), ERROR);
+    }
+
+    /**
+     * Run rounds carrying on from the last ones, each with one clean sample from a server clock that
+     * drifts away from ours at the given rate.
+     */
+    private static void runRounds(ClockSync sync, int n, double drift) {
+        long first = sync.getSampleCount(); // one sample per round
+        for (long i = first; i < first + n; i++) {
+            long t = i * ROUND_INTERVAL_MS;
+            sync.beginRound(t);
+            sync.addSample(t, t + 5 + OFFSET_MS + Math.round(drift * (t + 5)), t + 10);
+            sync.endRound();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.coolioasjulio.spotify;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PublishScheduleTest {
+    private static final String TRACK = "spotify:track:3bjLCKsBNSFyx6Gfsb7X4h";
+    private static final String NEXT_TRACK = "spotify:track:6rqhFgbbKwnb9MLmUQDhG6";
+    private static final int DURATION_MS = 240_000;
+    private static final long START = 1_585_779_930_707L;
+
+    private final PublishSchedule schedule = new PublishSchedule();
+
+    @Test
+    void publishesOnlyWhatMembersCantWorkOut() {
+        assertTrue(poll(0, 10_000, false, TRACK));
+        // playing on as expected
+        assertFalse(poll(1000, 11_000, false, TRACK));
+        assertFalse(poll(2000, 12_000, false, TRACK));
+
+        assertTrue(poll(3000, 0, false, NEXT_TRACK));
+        assertTrue(poll(4000, 1000, true, NEXT_TRACK));
+        // staying paused doesn't move
+        assertFalse(poll(5000, 1000, true, NEXT_TRACK));
+        assertTrue(poll(6000, 1000, false, NEXT_TRACK));
+        assertTrue(poll(7000, 2000, false, null));
+        assertFalse(poll(8000, 3000, false, null));
+        assertEquals(5, schedule.getPublishes());
+        assertEquals(9, schedule.getPolls());
+    }
+
+    @Test
+    void publishesJumpsAndDrift() {
+        assertTrue(poll(0, 10_000, false, TRACK));
+        assertFalse(poll(1000, 11_000 + PublishSchedule.DRIFT_THRESHOLD_MS, false, TRACK));
+        assertFalse(poll(2000, 12_000 - PublishSchedule.DRIFT_THRESHOLD_MS, false, TRACK));
+        assertTrue(poll(3000, 13_000 + PublishSchedule.DRIFT_THRESHOLD_MS + 1, false, TRACK));
+        // measured from what was published last, not from the last poll
+        assertFalse(poll(4000, 14_000 + PublishSchedule.DRIFT_THRESHOLD_MS + 1, false, TRACK));
+        // a seek back to the start
+        assertTrue(poll(5000, 0, false, TRACK));
+    }
+
+    @Test
+    void publishesAKeyframeWhenNothingChanges() {
+        assertTrue(poll(0, 10_000, false, TRACK));
+        long t = 0;
+        while (t + PublishSchedule.MAX_POLL_MS < PublishSchedule.KEYFRAME_MS) {
+            t += PublishSchedule.MAX_POLL_MS;
+            assertFalse(poll(t, 10_000 + t, false, TRACK), "at " + t);
+        }
+        assertTrue(poll(PublishSchedule.KEYFRAME_MS, 10_000 + PublishSchedule.KEYFRAME_MS, false, TRACK));
+        // paused as well
+        assertTrue(poll(PublishSchedule.KEYFRAME_MS + 1, 20_000, true, TRACK));
+        assertFalse(poll(2 * PublishSchedule.KEYFRAME_MS, 20_000, true, TRACK));
+        assertTrue(poll(2 * PublishSchedule.KEYFRAME_MS + 1, 20_000, true, TRACK));
+    }
+
+    @Test
+    void backsOffWhileNothingChanges() {
+        assertTrue(poll(0, 10_000, false, TRACK));
+        assertEquals(PublishSchedule.MIN_POLL_MS, schedule.getPollDelay());
+        long t = 0;
+        for (long expected = 2 * PublishSchedule.MIN_POLL_MS; expected < PublishSchedule.MAX_POLL_MS; expected *= 2) {
+            t += schedule.getPollDelay();
+            assertFalse(poll(t, 10_000 + t, false, TRACK));
+            assertEquals(expected, schedule.getPollDelay());
+        }
+        t += schedule.getPollDelay();
+        assertFalse(poll(t, 10_000 + t, false, TRACK));
+        assertEquals(PublishSchedule.MAX_POLL_MS, schedule.getPollDelay());
+
+        // a change brings it straight back
+        assertTrue(poll(t + 1000, 0, false, TRACK));
+        assertEquals(PublishSchedule.MIN_POLL_MS, schedule.getPollDelay());
+
+        schedule.onIdle();
+        assertEquals(PublishSchedule.MAX_POLL_MS, schedule.getPollDelay());
+    }
+
+    @Test
+    void comesBackJustAfterTheTrackEnds() {
+        poll(0, DURATION_MS - 5000, false, TRACK);
+        poll(1000, DURATION_MS - 4000, false, TRACK);
+        poll(2000, DURATION_MS - 3000, false, TRACK);
+        assertEquals(PublishSchedule.MAX_POLL_MS, schedule.getPollDelay());
+
+        assertFalse(poll(4600, DURATION_MS - 400, false, TRACK));
+        assertEquals(500, schedule.getPollDelay());
+        // but never more often than the minimum
+        assertFalse(poll(4900, DURATION_MS - 100, false, TRACK));
+        assertEquals(PublishSchedule.MIN_POLL_MS, schedule.getPollDelay());
+
+        // paused, or with no idea how long the track is, there's no end to wait for
+        for (int i = 0; i < 3; i++) {
+            poll(5000 + i, DURATION_MS - 100, true, TRACK);
+        }
+        assertEquals(PublishSchedule.MAX_POLL_MS, schedule.getPollDelay());
+        PublishSchedule unknown = new PublishSchedule();
+        for (int i = 0; i < 3; i++) {
+            unknown.onPoll(new MusicManager.MusicState(START + i, DURATION_MS + i, false, TRACK), 0, START + i);
+        }
+        assertEquals(PublishSchedule.MAX_POLL_MS, unknown.getPollDelay());
+    }
+
+    /**
+     * Poll a state read the given time into the test.
+     */
+    private boolean poll(long t, long songPos, boolean isPaused, String uri) {
+        return schedule.onPoll(new MusicManager.MusicState(START + t, (int) songPos, isPaused, uri), DURATION_MS, START + t);
+    }
+}
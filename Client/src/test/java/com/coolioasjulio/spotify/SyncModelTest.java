@@ -0,0 +1,104 @@
+package com.coolioasjulio.spotify;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyncModelTest {
+    private static final long READ_LATENCY_MS = 10; // a quick read, so the tolerance is as tight as it goes
+    private static final long HOST_POS_MS = 60_000;
+    private static final double ERROR = 1e-9;
+
+    private SyncModel model;
+
+    @BeforeEach
+    void warmUp() {
+        model = new SyncModel();
+        for (int i = 0; i < 20; i++) {
+            assertFalse(model.observe(0, READ_LATENCY_MS));
+        }
+        assertEquals(SyncModel.MIN_TOLERANCE_MS, model.getTolerance());
+    }
+
+    @Test
+    void aimsAheadByLatencyAndBackByBias() {
+        assertEquals(HOST_POS_MS, model.aim(HOST_POS_MS));
+
+        model.onSeek(100);
+        assertEquals(100, model.getCommandLatency(), ERROR);
+        assertEquals(HOST_POS_MS + 100, model.aim(HOST_POS_MS));
+
+        // it landed 200ms ahead of where it was aimed, so the next one is aimed a bit further back
+        model.observe(200, READ_LATENCY_MS);
+        assertEquals(60, model.getSeekBias(), ERROR);
+        assertEquals(HOST_POS_MS + 100 - 60, model.aim(HOST_POS_MS));
+
+        // moving averages, not the last value
+        model.onSeek(200);
+        assertEquals(130, model.getCommandLatency(), ERROR);
+        model.observe(-100, READ_LATENCY_MS);
+        assertEquals(30, model.getSeekBias(), ERROR);
+
+        // never before the start of the track
+        assertEquals(0, model.aim(-500));
+    }
+
+    @Test
+    void landingsAreOnlyLearnedFromRightAfterASeek() {
+        model.onSeek(100);
+        model.observe(5000, READ_LATENCY_MS); // too far off to be about the seek
+        assertEquals(0, model.getSeekBias(), ERROR);
+
+        model.observe(200, READ_LATENCY_MS); // not right after a seek
+        assertEquals(0, model.getSeekBias(), ERROR);
+
+        model.onSeek(100);
+        model.reset(); // then the track changed
+        model.observe(200, READ_LATENCY_MS);
+        assertEquals(0, model.getSeekBias(), ERROR);
+    }
+
+    @Test
+    void startsCorrectingPastTheThresholdAndStopsWithinTolerance() {
+        assertFalse(model.observe(SyncModel.ENTER_THRESHOLD_MS, READ_LATENCY_MS));
+        assertFalse(model.observe(-SyncModel.ENTER_THRESHOLD_MS, READ_LATENCY_MS));
+
+        assertTrue(model.observe(SyncModel.ENTER_THRESHOLD_MS + 1, READ_LATENCY_MS));
+        model.onSeek(0);
+        // well under the threshold, but not yet in tolerance, so it carries on
+        assertTrue(model.observe(SyncModel.MIN_TOLERANCE_MS + 1, READ_LATENCY_MS));
+        model.onSeek(0);
+        assertFalse(model.observe(-SyncModel.MIN_TOLERANCE_MS, READ_LATENCY_MS));
+        // back to waiting for the threshold
+        assertFalse(model.observe(SyncModel.ENTER_THRESHOLD_MS - 1, READ_LATENCY_MS));
+        assertEquals(2, model.getSeeks());
+    }
+
+    @Test
+    void givesUpAfterTooManyCorrections() {
+        for (int i = 0; i < SyncModel.MAX_CORRECTIONS; i++) {
+            assertTrue(model.observe(1000, READ_LATENCY_MS), "correction " + i);
+            model.onSeek(0);
+        }
+        assertFalse(model.observe(1000, READ_LATENCY_MS));
+        // until it gets worse than the threshold again
+        assertFalse(model.observe(SyncModel.ENTER_THRESHOLD_MS, READ_LATENCY_MS));
+        assertTrue(model.observe(SyncModel.ENTER_THRESHOLD_MS + 1, READ_LATENCY_MS));
+    }
+
+    @Test
+    void noisyReadsWidenTheTolerance() {
+        for (int i = 0; i < 20; i++) {
+            model.observe(0, 100);
+        }
+        assertEquals(200, model.getTolerance(), 2);
+
+        assertTrue(model.observe(400, 100));
+        model.onSeek(0);
+        // close enough, given reads are only good to about 100ms
+        assertFalse(model.observe(150, 100));
+    }
+}
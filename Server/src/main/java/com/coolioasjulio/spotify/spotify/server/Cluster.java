@@ -0,0 +1,250 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Shares the party space between several server nodes. Parties are assigned to nodes by consistent hashing
+ * on their id, and new parties are always given an id that this node owns.
+ *
+ * When a node joins the ring, some existing parties hash to it even though their host is still connected
+ * somewhere else. The hosting node registers those parties with the new owner, which keeps a directory of
+ * where to send their joins.
+ *
+ * Control messages between nodes are sent as InitialRequests with the cluster field set, on a single
+ * background thread, so they never block a reactor. They arrive on the same port as clients, so each one
+ * carries a secret shared by every node, and any message without it is refused.
+ */
+class Cluster {
+    private static final Log log = Log.get(Cluster.class);
+    private static final int CONTROL_TIMEOUT_MS = 2000;
+
+    private final String self;
+    private final byte[] secret;
+    private final HashRing ring;
+    private final Map<UUID, String> directory; // parties we own, but which are hosted on another node
+    private final ExecutorService control;
+    private final Gson gson;
+
+    /**
+     * @param self   The address other nodes use to reach this one, as host:port.
+     * @param peers  The addresses of the other nodes, as host:port.
+     * @param secret Shared by every node, to tell control messages from other nodes apart from anyone else's.
+     */
+    public Cluster(String self, Collection<String> peers, String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs a shared secret!");
+        }
+        if (!isValidNode(self)) throw new IllegalArgumentException("Expected host:port, got: " + self);
+        for (String peer : peers) {
+            if (!isValidNode(peer)) throw new IllegalArgumentException("Expected host:port, got: " + peer);
+        }
+        this.self = self;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        ring = new HashRing();
+        ring.add(self);
+        peers.forEach(ring::add);
+        directory = new ConcurrentHashMap<>();
+        control = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "cluster-control");
+            t.setDaemon(true);
+            return t;
+        });
+        gson = new Gson();
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public Set<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    /**
+     * @return True if a control message carrying this secret came from another node.
+     */
+    public boolean isTrusted(String secret) {
+        // compared in constant time, so the secret can't be worked out a byte at a time
+        return secret != null && MessageDigest.isEqual(this.secret, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Pick a new party id that hashes to this node, so joins for it can be routed without any lookup.
+     */
+    public UUID newPartyId() {
+        UUID id;
+        do {
+            id = UUID.randomUUID();
+        } while (!self.equals(ring.getOwner(id)));
+        return id;
+    }
+
+    /**
+     * Find out where a join for a party that isn't hosted here should go.
+     *
+     * @return The node to forward to, or null if this node owns the party (meaning it doesn't exist).
+     */
+    public String locate(UUID id) {
+        String node = directory.get(id);
+        if (node != null) return node;
+        String owner = ring.getOwner(id);
+        return self.equals(owner) ? null : owner;
+    }
+
+    /**
+     * Tell every known peer that this node exists. Each one replies with the nodes it knows about.
+     */
+    public void announce() {
+        for (String node : ring.getNodes()) {
+            if (!node.equals(self)) {
+                sendAdd(node, self);
+            }
+        }
+    }
+
+    /**
+     * Add a node to the ring, and hand over any parties it now owns.
+     *
+     * @param localParties The ids of the parties hosted on this node.
+     * @return False if the node was already known.
+     * @throws IllegalArgumentException If the node isn't a host:port.
+     */
+    public synchronized boolean addNode(String node, Collection<UUID> localParties) {
+        if (!isValidNode(node)) throw new IllegalArgumentException("Expected host:port, got: " + node);
+        if (ring.contains(node)) return false;
+        log.info("Cluster node added node=%s", node);
+        ring.add(node);
+        for (UUID id : localParties) {
+            if (node.equals(ring.getOwner(id))) {
+                sendLocate(node, id, self);
+            }
+        }
+        for (Map.Entry<UUID, String> e : directory.entrySet()) {
+            if (node.equals(ring.getOwner(e.getKey()))) {
+                sendLocate(node, e.getKey(), e.getValue());
+                directory.remove(e.getKey());
+            }
+        }
+        // let everyone else know too, they'll ignore it if they already do
+        for (String peer : ring.getNodes()) {
+            if (!peer.equals(self) && !peer.equals(node)) {
+                sendAdd(peer, node);
+            }
+        }
+        return true;
+    }
+
+    public void register(UUID id, String node) {
+        directory.put(id, node);
+    }
+
+    public void forget(UUID id) {
+        directory.remove(id);
+    }
+
+    /**
+     * Clean up after a party hosted on this node has ended.
+     */
+    public void onPartyEnded(UUID id) {
+        String owner = ring.getOwner(id);
+        if (!self.equals(owner)) {
+            ControlMessage msg = new ControlMessage("forget");
+            msg.id = id.toString();
+            send(owner, msg, null);
+        }
+    }
+
+    /**
+     * @return True if the node is a host:port that {@link #parseAddress(String)} accepts.
+     */
+    public static boolean isValidNode(String node) {
+        // without resolving the host, since this is checked on messages from anyone
+        int i = node == null ? -1 : node.lastIndexOf(':');
+        if (i <= 0) return false;
+        try {
+            int port = Integer.parseInt(node.substring(i + 1));
+            return port > 0 && port <= 0xFFFF;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static InetSocketAddress parseAddress(String node) {
+        int i = node.lastIndexOf(':');
+        if (i < 0) throw new IllegalArgumentException("Expected host:port, got: " + node);
+        return new InetSocketAddress(node.substring(0, i), Integer.parseInt(node.substring(i + 1)));
+    }
+
+    private void sendAdd(String to, String node) {
+        ControlMessage msg = new ControlMessage("add");
+        msg.node = node;
+        send(to, msg, reply -> {
+            // the reply lists every node the peer knows about
+            String[] parts = reply.split(" ");
+            for (int i = 1; i < parts.length; i++) {
+                if (!parts[i].equals(self) && isValidNode(parts[i]) && !ring.contains(parts[i])) {
+                    ring.add(parts[i]);
+                }
+            }
+        });
+    }
+
+    private void sendLocate(String to, UUID id, String host) {
+        ControlMessage msg = new ControlMessage("locate");
+        msg.id = id.toString();
+        msg.node = host;
+        send(to, msg, null);
+    }
+
+    private void send(String node, ControlMessage msg, Consumer<String> onReply) {
+        msg.secret = new String(secret, StandardCharsets.UTF_8);
+        control.execute(() -> {
+            try (Socket s = new Socket()) {
+                s.connect(parseAddress(node), CONTROL_TIMEOUT_MS);
+                s.setSoTimeout(CONTROL_TIMEOUT_MS);
+                PrintStream out = new PrintStream(s.getOutputStream());
+                out.println(gson.toJson(msg));
+                out.flush();
+                String reply = new BufferedReader(new InputStreamReader(s.getInputStream())).readLine();
+                if (reply == null || !reply.startsWith("OK")) {
+                    log.warn("Cluster node rejected message node=%s op=%s reply=%s", node, msg.cluster, reply);
+                } else if (onReply != null) {
+                    onReply.accept(reply);
+                }
+            } catch (IOException e) {
+                log.warn("Unable to reach cluster node node=%s: %s", node, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * The subset of InitialRequest used for control messages.
+     */
+    private static class ControlMessage {
+        private final String cluster;
+        private String id;
+        private String node;
+        private String secret;
+
+        ControlMessage(String cluster) {
+            this.cluster = cluster;
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A non-blocking connection. Reads are split into lines, or into frames once the binary protocol has been
+ * negotiated, and handed to the current handler. Writes are queued and drained whenever the socket is
+ * writable, and everything queued is flushed together with a single gathering write.
+ *
+ * The outbound queue is bounded. When a peer can't keep up, the {@link OverflowPolicy} decides whether to
+ * drop the connection or throw away everything but the newest message. Messages that are complete snapshots
+ * can instead be sent with {@link #sendLatest(SharedBuffer)}, which keeps at most one of them pending.
+ *
+ * All handler callbacks run on the owning reactor's thread. {@link #send(String)} and {@link #close()} may be
+ * called from any thread.
+ */
+class Connection {
+    private static final Log log = Log.get(Connection.class);
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_WRITE_BATCH = 16;
+
+    enum OverflowPolicy {
+        /**
+         * Close the connection once its queue is full.
+         */
+        DROP_CONNECTION,
+        /**
+         * Discard any messages that haven't started sending yet, and keep only the newest one.
+         */
+        KEEP_LATEST
+    }
+
+    enum Framing {
+        LINES,
+        /**
+         * Length prefixed frames, see {@link BinaryProtocol}.
+         */
+        FRAMES,
+        /**
+         * Bytes are passed through untouched, for forwarding.
+         */
+        RAW
+    }
+
+    enum Delivery {
+        SENT,
+        /**
+         * The message replaced an older one that hadn't started sending yet.
+         */
+        REPLACED,
+        CLOSED
+    }
+
+    interface Handler {
+        void onLine(Connection c, String line);
+
+        /**
+         * Called with a complete frame. The payload array is reused, so it must not be kept after returning.
+         */
+        default void onFrame(Connection c, byte type, byte[] payload, int offset, int length) {
+        }
+
+        /**
+         * Called with whatever bytes were read in {@link Framing#RAW} mode. The array is reused.
+         */
+        default void onBytes(Connection c, byte[] buf, int offset, int length) {
+        }
+
+        /**
+         * Called once an accepted connection has been registered with its reactor.
+         */
+        default void onOpen(Connection c) {
+        }
+
+        /**
+         * Called every heartbeat interval, see {@link #setHeartbeat(long)}.
+         *
+         * @param idleMillis How long it's been since anything was read from the connection.
+         */
+        default void onHeartbeat(Connection c, long idleMillis) {
+        }
+
+        void onClose(Connection c);
+    }
+
+    /**
+     * Observes what happens to the messages written to a connection. Called on the reactor thread,
+     * except for {@link #onOverflow()}, which is called from whichever thread sent the message.
+     */
+    interface WriteListener {
+        /**
+         * @param latencyNanos How long since the message's origin, or -1 if it doesn't have one.
+         * @param bytes        The size of the message.
+         */
+        void onWritten(long latencyNanos, int bytes);
+
+        void onWriteError();
+
+        void onOverflow();
+    }
+
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private final InetAddress address;
+    private final ByteBuffer readBuffer;
+    private final ByteArrayOutputStream lineBuffer;
+    private Framing framing = Framing.LINES;
+    private byte[] frameBuffer;
+    private int frameLength = -1, framePos, partialLength, partialLengthShift;
+    private final Queue<SharedBuffer> outbound;
+    private final AtomicReference<SharedBuffer> latest;
+    private final AtomicInteger queued;
+    private final AtomicBoolean flushScheduled;
+    private volatile int maxQueued = Integer.MAX_VALUE;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_CONNECTION;
+    // The batch currently being written. Only touched by the reactor thread.
+    private final SharedBuffer[] batch;
+    private final ByteBuffer[] batchViews;
+    private int batchStart, batchEnd;
+    private SelectionKey key;
+    private Handler handler;
+    private long lastReadNanos;
+    private TimerWheel.Timeout heartbeat;
+    private volatile WriteListener writeListener;
+    private volatile boolean closed;
+    private boolean connected;
+    private volatile boolean overflowed;
+    private volatile boolean closeAfterFlush;
+
+    Connection(SocketChannel channel, Reactor reactor, Handler handler, InetAddress address, boolean connected) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.handler = handler;
+        this.address = address;
+        this.connected = connected;
+        readBuffer = ByteBuffer.allocate(4096);
+        lineBuffer = new ByteArrayOutputStream();
+        outbound = new ConcurrentLinkedQueue<>();
+        queued = new AtomicInteger();
+        latest = new AtomicReference<>();
+        flushScheduled = new AtomicBoolean();
+        batch = new SharedBuffer[MAX_WRITE_BATCH];
+        batchViews = new ByteBuffer[MAX_WRITE_BATCH];
+        lastReadNanos = System.nanoTime();
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public Reactor getReactor() {
+        return reactor;
+    }
+
+    /**
+     * Change the handler that future lines are delivered to. Must be called from the reactor thread.
+     */
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Change how incoming bytes are split up. Takes effect from the next unread byte, so this can be called
+     * from a handler callback. Must be called from the reactor thread.
+     */
+    public void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+    /**
+     * Set the listener that is told about every message written to this connection, or null for none.
+     */
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Call the handler's {@link Handler#onHeartbeat(Connection, long)} every interval, replacing any previous
+     * interval. Handlers use this to ping the peer and to reap connections that have gone quiet.
+     * Must be called from the reactor thread.
+     *
+     * @param intervalMillis The interval, or 0 to stop.
+     */
+    public void setHeartbeat(long intervalMillis) {
+        if (heartbeat != null) {
+            heartbeat.cancel();
+            heartbeat = null;
+        }
+        if (intervalMillis > 0 && !closed) {
+            scheduleHeartbeat(intervalMillis);
+        }
+    }
+
+    private void scheduleHeartbeat(long intervalMillis) {
+        heartbeat = reactor.schedule(() -> {
+            scheduleHeartbeat(intervalMillis);
+            handler.onHeartbeat(this, (System.nanoTime() - lastReadNanos) / 1_000_000L);
+        }, intervalMillis);
+    }
+
+    public boolean isClosed() {
+        return closed || overflowed;
+    }
+
+    /**
+     * @return True if the connection was dropped because its queue filled up, rather than by the peer.
+     */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * @return How many messages are waiting in the outbound queue, not counting one sent with
+     *         {@link #sendLatest(SharedBuffer)}.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return True if a message sent with {@link #sendLatest(SharedBuffer)} is still waiting to be written.
+     */
+    public boolean hasPendingLatest() {
+        return latest.get() != null;
+    }
+
+    /**
+     * Bound the number of messages waiting to be written to this connection.
+     *
+     * @param maxQueued      The maximum number of messages that may be waiting. Must be at least 1.
+     * @param overflowPolicy What to do when a message is sent to a full queue.
+     */
+    public void setOutboundLimit(int maxQueued, OverflowPolicy overflowPolicy) {
+        if (maxQueued < 1) throw new IllegalArgumentException("maxQueued must be at least 1!");
+        this.maxQueued = maxQueued;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queue a line to be written to this connection. This never blocks.
+     *
+     * @return False if the connection is already closed, true otherwise.
+     */
+    public boolean send(String line) {
+        SharedBuffer buf = SharedBuffer.encode(line);
+        boolean sent = send(buf);
+        buf.release();
+        return sent;
+    }
+
+    /**
+     * Queue an encoded message to be written to this connection. This never blocks.
+     * The connection takes its own reference to the buffer, so the caller still owns the one it holds.
+     *
+     * @return False if the connection is already closed, true otherwise.
+     */
+    public boolean send(SharedBuffer buf) {
+        if (isClosed()) return false;
+        if (queued.incrementAndGet() > maxQueued) {
+            if (overflowPolicy == OverflowPolicy.DROP_CONNECTION) {
+                queued.decrementAndGet();
+                overflowed = true;
+                log.info("Outbound queue full, dropping connection peer=%s", address);
+                WriteListener listener = writeListener;
+                if (listener != null) listener.onOverflow();
+                close();
+                return false;
+            }
+            // Everything still queued is stale, so throw it away. The message currently being written is left alone.
+            SharedBuffer stale;
+            while ((stale = outbound.poll()) != null) {
+                queued.decrementAndGet();
+                stale.release();
+            }
+        }
+        outbound.add(buf.retain());
+        if (closed) {
+            // lost a race with close(), so make sure nothing is left holding a reference
+            releaseQueued();
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Send a message that supersedes any earlier message sent this way. If the previous one hasn't started
+     * sending yet, it's dropped and replaced, so a slow peer only ever has one of these waiting.
+     * Like {@link #send(SharedBuffer)}, the connection takes its own reference to the buffer.
+     */
+    public Delivery sendLatest(SharedBuffer buf) {
+        if (isClosed()) return Delivery.CLOSED;
+        SharedBuffer old = latest.getAndSet(buf.retain());
+        if (closed) {
+            releaseLatest();
+        }
+        if (old != null) {
+            old.release();
+            return Delivery.REPLACED;
+        }
+        scheduleFlush();
+        return Delivery.SENT;
+    }
+
+    /**
+     * Write the line and then close the connection once it has been flushed.
+     */
+    public void sendAndClose(String line) {
+        closeAfterFlush = true;
+        if (!send(line)) close();
+    }
+
+    /**
+     * Close the connection once everything already sent has been written.
+     */
+    public void closeAfterFlush() {
+        closeAfterFlush = true;
+        reactor.execute(this::flush);
+    }
+
+    private void scheduleFlush() {
+        if (reactor.inReactorThread()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    private void flush() {
+        if (closed || !connected) return;
+        try {
+            while (true) {
+                // top up the batch from the queue
+                boolean batchEmpty = batchStart == batchEnd;
+                SharedBuffer next;
+                while (batchEnd < MAX_WRITE_BATCH && (next = outbound.poll()) != null) {
+                    queued.decrementAndGet();
+                    addToBatch(next);
+                }
+                // Only take the latest message once the previous write has finished, so that it stays replaceable
+                if (batchEmpty && batchEnd < MAX_WRITE_BATCH && (next = latest.getAndSet(null)) != null) {
+                    addToBatch(next);
+                }
+                if (batchStart == batchEnd) break;
+                channel.write(batchViews, batchStart, batchEnd - batchStart);
+                WriteListener listener = writeListener;
+                long now = listener != null ? System.nanoTime() : 0;
+                while (batchStart < batchEnd && !batchViews[batchStart].hasRemaining()) {
+                    if (listener != null) {
+                        long origin = batch[batchStart].getOriginNanos();
+                        listener.onWritten(origin != 0 ? now - origin : -1, batch[batchStart].size());
+                    }
+                    batch[batchStart].release();
+                    batch[batchStart] = null;
+                    batchViews[batchStart] = null;
+                    batchStart++;
+                }
+                if (batchStart < batchEnd) {
+                    // socket buffer is full, wait until it drains
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                batchStart = batchEnd = 0;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) close();
+        } catch (IOException e) {
+            WriteListener listener = writeListener;
+            if (listener != null) listener.onWriteError();
+            close();
+        }
+    }
+
+    private void addToBatch(SharedBuffer buf) {
+        batch[batchEnd] = buf;
+        batchViews[batchEnd] = buf.view();
+        batchEnd++;
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    void onConnectable() {
+        try {
+            if (!channel.finishConnect()) return;
+        } catch (IOException e) {
+            log.warn("Unable to connect peer=%s: %s", address, e.getMessage());
+            close();
+            return;
+        }
+        connected = true;
+        key.interestOps(SelectionKey.OP_READ);
+        flush();
+    }
+
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (read < 0) {
+            close(); // stream closed
+            return;
+        }
+        lastReadNanos = System.nanoTime();
+        readBuffer.flip();
+        while (readBuffer.hasRemaining() && !closed) {
+            if (framing == Framing.RAW) {
+                handler.onBytes(this, readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+                readBuffer.position(readBuffer.limit());
+                continue;
+            }
+            if (framing == Framing.FRAMES) {
+                readFrame();
+                continue;
+            }
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                String line = lineBuffer.toString(StandardCharsets.UTF_8);
+                lineBuffer.reset();
+                if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                handler.onLine(this, line);
+            } else if (lineBuffer.size() >= MAX_LINE_LENGTH) {
+                log.warn("Line too long, dropping connection peer=%s", address);
+                close();
+            } else {
+                lineBuffer.write(b);
+            }
+        }
+        readBuffer.clear();
+    }
+
+    private void readFrame() {
+        if (frameLength < 0) {
+            // still reading the varint length
+            byte b = readBuffer.get();
+            partialLength |= (b & 0x7F) << partialLengthShift;
+            partialLengthShift += 7;
+            if ((b & 0x80) != 0) {
+                if (partialLengthShift > 21) {
+                    log.warn("Malformed frame, dropping connection peer=%s", address);
+                    close();
+                }
+                return;
+            }
+            frameLength = partialLength;
+            partialLength = 0;
+            partialLengthShift = 0;
+            if (frameLength < 1 || frameLength > BinaryProtocol.MAX_FRAME_LENGTH) {
+                log.warn("Bad frame length, dropping connection peer=%s", address);
+                close();
+                return;
+            }
+            if (frameBuffer == null || frameBuffer.length < frameLength) {
+                frameBuffer = new byte[Math.max(frameLength, 256)];
+            }
+        }
+        int n = Math.min(readBuffer.remaining(), frameLength - framePos);
+        readBuffer.get(frameBuffer, framePos, n);
+        framePos += n;
+        if (framePos == frameLength) {
+            int length = frameLength;
+            frameLength = -1;
+            framePos = 0;
+            handler.onFrame(this, frameBuffer[0], frameBuffer, 1, length - 1);
+        }
+    }
+
+    /**
+     * Close the connection. The handler is notified exactly once, on the reactor thread.
+     */
+    public void close() {
+        if (!reactor.inReactorThread()) {
+            reactor.execute(this::close);
+            return;
+        }
+        if (closed) return;
+        closed = true;
+        if (heartbeat != null) {
+            heartbeat.cancel();
+            heartbeat = null;
+        }
+        releaseQueued();
+        releaseLatest();
+        for (int i = batchStart; i < batchEnd; i++) {
+            batch[i].release();
+        }
+        Arrays.fill(batch, null);
+        Arrays.fill(batchViews, null);
+        batchStart = batchEnd = 0;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing connection peer=%s", address, e);
+        }
+        handler.onClose(this);
+    }
+
+    private void releaseLatest() {
+        SharedBuffer buf = latest.getAndSet(null);
+        if (buf != null) buf.release();
+    }
+
+    private void releaseQueued() {
+        SharedBuffer buf;
+        while ((buf = outbound.poll()) != null) {
+            queued.decrementAndGet();
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * A consistent hash ring of server nodes. Each node is placed on the ring many times, so that adding a node
+ * only moves a small, even share of parties to it. The ring is copied on write, since lookups happen on every
+ * join and changes only when a node is added.
+ */
+class HashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private volatile NavigableMap<Long, String> ring = Collections.emptyNavigableMap();
+
+    public synchronized void add(String node) {
+        NavigableMap<Long, String> next = new TreeMap<>(ring);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            next.put(hash(node + "#" + i), node);
+        }
+        ring = next;
+    }
+
+    public boolean contains(String node) {
+        return ring.containsValue(node);
+    }
+
+    public Set<String> getNodes() {
+        return new TreeSet<>(ring.values());
+    }
+
+    /**
+     * @return The node that owns the party, or null if the ring is empty.
+     */
+    public String getOwner(UUID party) {
+        NavigableMap<Long, String> r = ring;
+        if (r.isEmpty()) return null;
+        Map.Entry<Long, String> e = r.ceilingEntry(hash(party));
+        return e != null ? e.getValue() : r.firstEntry().getValue();
+    }
+
+    private static long hash(UUID uuid) {
+        // random UUIDs are already uniform, but mix anyway in case of other versions
+        long h = uuid.getMostSignificantBits() ^ Long.rotateLeft(uuid.getLeastSignificantBits(), 32);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // every JVM has MD5
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, log-linear histogram of non-negative values. Every power of two is split into 4 buckets, which
+ * bounds the error of any percentile to 25%. Recording never allocates, so it's safe to use on the hot path.
+ */
+class Histogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // enough for values up to 2^25, after which everything lands in the last bucket
+    static final int NUM_BUCKETS = 96;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public Histogram() {
+        buckets = new AtomicLongArray(NUM_BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * @param p The percentile, between 0 and 1.
+     * @return An upper bound on the value at that percentile, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double p) {
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return Math.min((exp - SUB_BITS + 1) * SUB_COUNT + sub, NUM_BUCKETS - 1);
+    }
+
+    /**
+     * @return The exclusive upper bound of the values in a bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket + 1;
+        if (bucket == NUM_BUCKETS - 1) return Long.MAX_VALUE;
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        long lower = (1L << exp) + ((long) sub << (exp - SUB_BITS));
+        return lower + (1L << (exp - SUB_BITS));
+    }
+}
@@ -0,0 +1,11 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+class Member {
+    public final Connection connection;
+    public final int protocol;
+
+    public Member(Connection connection, int protocol) {
+        this.connection = connection;
+        this.protocol = protocol;
+    }
+}
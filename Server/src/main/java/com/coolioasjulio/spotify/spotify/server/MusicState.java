@@ -0,0 +1,23 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+/**
+ * A snapshot of the host's playback. This mirrors the client's MusicState, so Gson can read and write it.
+ */
+class MusicState {
+    public long timestamp;
+    public int songPos;
+    public boolean isPaused;
+    public String uri;
+
+    public MusicState(long timestamp, int songPos, boolean isPaused, String uri) {
+        this.timestamp = timestamp;
+        this.songPos = songPos;
+        this.isPaused = isPaused;
+        this.uri = uri;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MusicState(timestamp=%d, songPos=%d, isPaused=%b, uri=%s)", timestamp, songPos, isPaused, uri);
+    }
+}
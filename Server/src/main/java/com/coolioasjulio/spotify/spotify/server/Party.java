@@ -0,0 +1,94 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A host and its members. The member set is an immutable array that is swapped atomically on every join and
+ * leave, so broadcasting reads a consistent snapshot without taking a lock.
+ */
+class Party {
+    private static final Member[] NO_MEMBERS = new Member[0];
+    private static final Member[] ENDED = new Member[0];
+
+    public volatile Member host; // replaced when the host resumes its session
+    public final LongAdder conflated = new LongAdder();
+    public final RelayMetrics.PartyMetrics metrics;
+    public volatile MusicState latestState; // the last state relayed, so joiners can sync immediately
+    public final AtomicInteger suspended = new AtomicInteger(); // members waiting to resume, see Session
+    private final AtomicReference<Member[]> members;
+
+    public Party(Member host, RelayMetrics.PartyMetrics metrics) {
+        this.host = host;
+        this.metrics = metrics;
+        members = new AtomicReference<>(NO_MEMBERS);
+    }
+
+    /**
+     * Get the current members. The returned array must not be modified.
+     */
+    public Member[] getMembers() {
+        return members.get();
+    }
+
+    public int size() {
+        return members.get().length;
+    }
+
+    /**
+     * @return The number of members, including any that are about to resume.
+     */
+    public int getMemberCount() {
+        return size() + suspended.get();
+    }
+
+    public boolean isEnded() {
+        return members.get() == ENDED;
+    }
+
+    /**
+     * @return False if the party has already ended, in which case the member was not added.
+     */
+    public boolean addMember(Member m) {
+        while (true) {
+            Member[] curr = members.get();
+            if (curr == ENDED) return false;
+            Member[] next = new Member[curr.length + 1];
+            System.arraycopy(curr, 0, next, 0, curr.length);
+            next[curr.length] = m;
+            if (members.compareAndSet(curr, next)) return true;
+        }
+    }
+
+    /**
+     * @return True if the member was in the party.
+     */
+    public boolean removeMember(Member m) {
+        while (true) {
+            Member[] curr = members.get();
+            int i = indexOf(curr, m);
+            if (i < 0) return false;
+            Member[] next = new Member[curr.length - 1];
+            System.arraycopy(curr, 0, next, 0, i);
+            System.arraycopy(curr, i + 1, next, i, curr.length - i - 1);
+            if (members.compareAndSet(curr, next)) return true;
+        }
+    }
+
+    /**
+     * End the party. No one can join afterwards.
+     *
+     * @return The members at the time the party ended.
+     */
+    public Member[] end() {
+        return members.getAndSet(ENDED);
+    }
+
+    private static int indexOf(Member[] arr, Member m) {
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i] == m) return i;
+        }
+        return -1;
+    }
+}
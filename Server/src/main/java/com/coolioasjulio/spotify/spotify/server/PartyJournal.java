@@ -0,0 +1,329 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of party lifecycle events and latest states, so a restarted server can pick up the
+ * parties it had instead of turning every reconnecting client away.
+ *
+ * Nothing touches the disk on the relay path. Lifecycle events are queued, states are conflated to the
+ * latest one per party, and a single thread appends and syncs them every {@link #FLUSH_INTERVAL_MS}, so a
+ * crash loses at most that much. Once the log has grown well past the live data, it's compacted by writing
+ * a fresh snapshot of every live party and session and renaming it over the log.
+ *
+ * The file is a header followed by records of [length][crc32][type][party id][data]. A torn record at the
+ * end, from a crash mid-write, fails its checksum and is dropped along with anything after it.
+ */
+class PartyJournal {
+    private static final Log log = Log.get(PartyJournal.class);
+    private static final int MAGIC = 0x53504A4C; // "SPJL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 8; // length and checksum
+    private static final int ID_LENGTH = 17; // type and party id
+
+    private static final byte CREATED = 1;
+    private static final byte STATE = 2;
+    private static final byte ENDED = 3;
+    private static final byte SESSION = 4;
+    private static final byte SESSION_ENDED = 5;
+
+    private static final long FLUSH_INTERVAL_MS = 100;
+    private static final long MIN_COMPACT_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Read a journal back. Records that no longer matter, like the states of parties that have since ended,
+     * are skipped, so the result only holds what was live when the journal was last written.
+     *
+     * @return What was recovered, which is empty if there's no journal yet.
+     * @throws IOException If the file can't be read or isn't a journal.
+     */
+    public static Recovery recover(Path path) throws IOException {
+        Recovery recovery = new Recovery();
+        if (!Files.exists(path)) return recovery;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < HEADER_LENGTH || buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a party journal: " + path);
+            }
+            CRC32 crc = new CRC32();
+            while (buf.remaining() >= RECORD_HEADER_LENGTH) {
+                int length = buf.getInt();
+                int checksum = buf.getInt();
+                if (length < ID_LENGTH || length > buf.remaining()) break;
+                ByteBuffer record = buf.slice().limit(length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) break;
+                buf.position(buf.position() + length);
+                recovery.apply(record);
+            }
+            recovery.truncated = buf.hasRemaining();
+        }
+        return recovery;
+    }
+
+    /**
+     * Everything that was live when the journal was last written.
+     */
+    static class Recovery {
+        public final Map<UUID, RecoveredParty> parties = new HashMap<>();
+        public int records;
+        public boolean truncated; // if the journal ended in a torn or corrupt record
+
+        private void apply(ByteBuffer record) {
+            records++;
+            byte type = record.get();
+            UUID id = new UUID(record.getLong(), record.getLong());
+            RecoveredParty p = parties.get(id);
+            switch (type) {
+                case CREATED:
+                    parties.putIfAbsent(id, new RecoveredParty());
+                    break;
+                case STATE:
+                    if (p == null) break;
+                    byte[] frame = new byte[record.remaining()];
+                    record.get(frame);
+                    try {
+                        p.state = BinaryProtocol.decodeStateFrame(frame, 0, frame.length);
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Skipping malformed state in journal party=%s", id);
+                    }
+                    break;
+                case ENDED:
+                    parties.remove(id);
+                    break;
+                case SESSION:
+                    if (p == null) break;
+                    boolean isHost = record.get() != 0;
+                    p.sessions.put(readString(record), isHost);
+                    break;
+                case SESSION_ENDED:
+                    if (p != null) p.sessions.remove(readString(record));
+                    break;
+                default:
+                    log.warn("Skipping unknown journal record type=%d", type);
+            }
+        }
+
+        private static String readString(ByteBuffer buf) {
+            byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    static class RecoveredParty {
+        public MusicState state; // null if the host never sent one
+        public final Map<String, Boolean> sessions = new HashMap<>(); // resume token to whether it's the host's
+    }
+
+    private static class Record {
+        private final byte type;
+        private final UUID id;
+        private final byte[] data;
+
+        private Record(byte type, UUID id, byte[] data) {
+            this.type = type;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private final Path path;
+    private final Map<UUID, Party> partyMap;
+    private final Map<String, Session> sessions;
+    private final ConcurrentLinkedQueue<Record> pending = new ConcurrentLinkedQueue<>();
+    private final Map<UUID, Party> dirty = new ConcurrentHashMap<>(); // parties whose latest state isn't written yet
+    private final ByteBuffer out = ByteBuffer.allocate(2 * BinaryProtocol.MAX_FRAME_LENGTH); // fits any one record
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long size;
+    private long compactedSize;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param path      Where to keep the journal. It's replaced, so recover it first.
+     * @param partyMap  The live parties, which are snapshotted when compacting.
+     * @param sessions  The live sessions, by resume token.
+     */
+    public PartyJournal(Path path, Map<UUID, Party> partyMap, Map<String, Session> sessions) {
+        this.path = path;
+        this.partyMap = partyMap;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Write a snapshot of the current parties, replacing whatever was there, and start appending to it.
+     */
+    public void start() throws IOException {
+        compact();
+        running = true;
+        thread = new Thread(this::run, "journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Write out anything still pending and stop.
+     */
+    public void stop() {
+        running = false;
+        if (thread == null) return;
+        // not interrupted, since that would close the channel in the middle of a write
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void onCreated(UUID id) {
+        pending.add(new Record(CREATED, id, new byte[0]));
+    }
+
+    /**
+     * Note that the party has a new latest state. Only the newest one is written, however often this is called.
+     */
+    public void onState(UUID id, Party p) {
+        dirty.put(id, p);
+    }
+
+    public void onEnded(UUID id) {
+        pending.add(new Record(ENDED, id, new byte[0]));
+    }
+
+    public void onSession(Session s) {
+        pending.add(sessionRecord(s));
+    }
+
+    public void onSessionEnded(Session s) {
+        pending.add(new Record(SESSION_ENDED, s.partyId, s.token.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            try {
+                flush();
+                if (size - compactedSize > Math.max(MIN_COMPACT_BYTES, compactedSize)) {
+                    compact();
+                }
+            } catch (IOException e) {
+                log.error("Unable to write the journal path=%s", path, e);
+            }
+        }
+        try {
+            flush();
+            channel.close();
+        } catch (IOException e) {
+            log.error("Unable to close the journal path=%s", path, e);
+        }
+    }
+
+    /**
+     * Append everything that's happened since the last flush, and sync it to disk.
+     */
+    private void flush() throws IOException {
+        boolean wrote = false;
+        // Lifecycle events go first, so a party's state never lands in the journal before it was created
+        Record r;
+        while ((r = pending.poll()) != null) {
+            write(r);
+            wrote = true;
+        }
+        for (Map.Entry<UUID, Party> entry : dirty.entrySet()) {
+            dirty.remove(entry.getKey());
+            Party p = entry.getValue();
+            MusicState state = p.latestState;
+            if (state == null || p.isEnded()) continue;
+            write(new Record(STATE, entry.getKey(), BinaryProtocol.encodeStateFrame(state)));
+            wrote = true;
+        }
+        if (wrote) {
+            drain();
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Write every live party and session to a new file, and atomically swap it in for the journal.
+     */
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        FileChannel old = channel;
+        channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        size = 0;
+        out.putInt(MAGIC).putInt(FORMAT_VERSION);
+        size += HEADER_LENGTH;
+        int parties = 0;
+        for (Map.Entry<UUID, Party> entry : partyMap.entrySet()) {
+            Party p = entry.getValue();
+            if (p.isEnded()) continue;
+            write(new Record(CREATED, entry.getKey(), new byte[0]));
+            MusicState state = p.latestState;
+            if (state != null) {
+                write(new Record(STATE, entry.getKey(), BinaryProtocol.encodeStateFrame(state)));
+            }
+            parties++;
+        }
+        for (Session s : sessions.values()) {
+            if (!s.isEnded()) write(sessionRecord(s));
+        }
+        drain();
+        channel.force(false);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (old != null) old.close();
+        compactedSize = size;
+        log.info("Compacted journal parties=%d bytes=%d took=%dms", parties, size, (System.nanoTime() - start) / 1_000_000L);
+    }
+
+    private Record sessionRecord(Session s) {
+        byte[] token = s.token.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[1 + token.length];
+        data[0] = (byte) (s.isHost ? 1 : 0);
+        System.arraycopy(token, 0, data, 1, token.length);
+        return new Record(SESSION, s.partyId, data);
+    }
+
+    private void write(Record r) throws IOException {
+        int length = ID_LENGTH + r.data.length;
+        if (out.remaining() < RECORD_HEADER_LENGTH + length) drain();
+        int start = out.position();
+        out.putInt(length).putInt(0); // the checksum is filled in below
+        out.put(r.type).putLong(r.id.getMostSignificantBits()).putLong(r.id.getLeastSignificantBits()).put(r.data);
+        crc.reset();
+        crc.update(out.array(), start + RECORD_HEADER_LENGTH, length);
+        out.putInt(start + 4, (int) crc.getValue());
+        size += RECORD_HEADER_LENGTH + length;
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+}
@@ -0,0 +1,30 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+/**
+ * Splices two connections together in {@link Connection.Framing#RAW} mode. Used to forward a join to the
+ * cluster node that hosts the party, without the client knowing.
+ */
+class ProxyHandler implements Connection.Handler {
+    private final Connection peer;
+
+    public ProxyHandler(Connection peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public void onLine(Connection c, String line) {
+        // raw connections don't produce lines
+    }
+
+    @Override
+    public void onBytes(Connection c, byte[] buf, int offset, int length) {
+        SharedBuffer data = SharedBuffer.wrap(buf, offset, length);
+        peer.send(data);
+        data.release();
+    }
+
+    @Override
+    public void onClose(Connection c) {
+        peer.closeAfterFlush();
+    }
+}
@@ -0,0 +1,163 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread. Every connection is owned by exactly one reactor, and all reads, writes
+ * and state changes for that connection happen on the reactor's thread.
+ *
+ * Each reactor also runs a timer wheel for its connections' timeouts, ticked between selects.
+ */
+class Reactor implements Runnable {
+    private static final Log log = Log.get(Reactor.class);
+    private static final long TIMER_TICK_MS = 100;
+    private static final int TIMER_SLOTS = 512;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final TimerWheel timers;
+    private Thread thread;
+
+    public Reactor() throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        timers = new TimerWheel(TIMER_TICK_MS, TIMER_SLOTS);
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            selector.wakeup();
+        }
+    }
+
+    public boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run the task on the reactor thread. If called from the reactor thread, the task is run inline.
+     */
+    public void execute(Runnable task) {
+        if (inReactorThread()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Run the task on the reactor thread after a delay. Must be called from the reactor thread.
+     */
+    public TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return timers.schedule(task, delayMillis);
+    }
+
+    /**
+     * Hand a freshly accepted channel to this reactor. The connection starts reading once registered.
+     */
+    public void register(SocketChannel channel, Connection.Handler handler) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                Connection c = new Connection(channel, this, handler, channel.socket().getInetAddress(), true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, c);
+                c.setKey(key);
+                handler.onOpen(c);
+            } catch (ClosedChannelException ignored) {
+            } catch (IOException e) {
+                log.error("Unable to register connection", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    /**
+     * Open an outgoing connection. Anything sent on the returned connection is held until the connect finishes,
+     * and if the connect fails the connection is closed.
+     */
+    public Connection connect(InetSocketAddress address, Connection.Handler handler) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        boolean connected = channel.connect(address);
+        Connection c = new Connection(channel, this, handler, address.getAddress(), connected);
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+                c.setKey(key);
+                if (connected) c.onWritable();
+            } catch (ClosedChannelException e) {
+                c.close();
+            }
+        });
+        return c;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.interrupted()) {
+            try {
+                if (timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(timers.millisUntilNextTick());
+                }
+            } catch (IOException e) {
+                log.error("Select failed", e);
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection c = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        c.onConnectable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        c.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        c.onWritable();
+                    }
+                } catch (RuntimeException e) {
+                    // never let one bad connection take down every other connection on this thread
+                    log.error("Unhandled error on connection, closing it peer=%s", c.getAddress(), e);
+                    c.close();
+                }
+            }
+            try {
+                timers.advance();
+            } catch (RuntimeException e) {
+                log.error("Unhandled error in timer", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Unable to close selector", e);
+        }
+    }
+}
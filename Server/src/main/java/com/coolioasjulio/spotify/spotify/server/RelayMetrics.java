@@ -0,0 +1,266 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the relay, for the whole server and for each party.
+ * All recording is allocation free, so that measuring the relay doesn't change how it performs.
+ */
+class RelayMetrics implements RelayMetricsMBean {
+    static final int DEFAULT_MAX_PARTY_SERIES = 20;
+
+    private final Map<UUID, Party> partyMap;
+    private final Histogram fanoutLatency;
+    private final LongAdder messagesRelayed;
+    private final LongAdder bytesRelayed;
+    private final LongAdder membersDropped;
+    private final LongAdder writeErrors;
+    private final LongAdder conflatedStates;
+    private final LongAdder reapedConnections;
+    private volatile int maxPartySeries = DEFAULT_MAX_PARTY_SERIES;
+
+    public RelayMetrics(Map<UUID, Party> partyMap) {
+        this.partyMap = partyMap;
+        fanoutLatency = new Histogram();
+        messagesRelayed = new LongAdder();
+        bytesRelayed = new LongAdder();
+        membersDropped = new LongAdder();
+        writeErrors = new LongAdder();
+        conflatedStates = new LongAdder();
+        reapedConnections = new LongAdder();
+    }
+
+    public PartyMetrics newPartyMetrics() {
+        return new PartyMetrics();
+    }
+
+    @Override
+    public int getActiveParties() {
+        return partyMap.size();
+    }
+
+    @Override
+    public long getActiveMembers() {
+        long members = 0;
+        for (Party p : partyMap.values()) {
+            members += p.size();
+        }
+        return members;
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        long queued = 0;
+        for (Party p : partyMap.values()) {
+            for (Member m : p.getMembers()) {
+                queued += m.connection.getQueued();
+            }
+        }
+        return queued;
+    }
+
+    @Override
+    public int getMaxQueuedMessages() {
+        int max = 0;
+        for (Party p : partyMap.values()) {
+            for (Member m : p.getMembers()) {
+                max = Math.max(max, m.connection.getQueued());
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public long getPendingLatest() {
+        long pending = 0;
+        for (Party p : partyMap.values()) {
+            for (Member m : p.getMembers()) {
+                if (m.connection.hasPendingLatest()) pending++;
+            }
+        }
+        return pending;
+    }
+
+    @Override
+    public long getMessagesRelayed() {
+        return messagesRelayed.sum();
+    }
+
+    @Override
+    public long getBytesRelayed() {
+        return bytesRelayed.sum();
+    }
+
+    @Override
+    public long getMembersDropped() {
+        return membersDropped.sum();
+    }
+
+    @Override
+    public long getWriteErrors() {
+        return writeErrors.sum();
+    }
+
+    @Override
+    public long getConflatedStates() {
+        return conflatedStates.sum();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return reapedConnections.sum();
+    }
+
+    void onReaped() {
+        reapedConnections.increment();
+    }
+
+    @Override
+    public long getFanoutLatencyP50Micros() {
+        return fanoutLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getFanoutLatencyP99Micros() {
+        return fanoutLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getFanoutLatencyP999Micros() {
+        return fanoutLatency.getPercentile(0.999);
+    }
+
+    @Override
+    public long getFanoutLatencyMaxMicros() {
+        return fanoutLatency.getMax();
+    }
+
+    /**
+     * Render every metric in the Prometheus text exposition format.
+     */
+    public String toPrometheusText() {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        gauge(out, "relay_active_parties", "Parties currently hosted on this server.", getActiveParties());
+        gauge(out, "relay_active_members", "Members currently in a party on this server.", getActiveMembers());
+        gauge(out, "relay_queued_messages", "Messages waiting in members' outbound queues.", getQueuedMessages());
+        gauge(out, "relay_max_queued_messages", "The most messages waiting for any one member.", getMaxQueuedMessages());
+        gauge(out, "relay_pending_latest", "Members with a conflated state waiting to be written.", getPendingLatest());
+        counter(out, "relay_messages_total", "Updates written to members.", getMessagesRelayed());
+        counter(out, "relay_bytes_total", "Bytes of updates written to members.", getBytesRelayed());
+        counter(out, "relay_members_dropped_total", "Members dropped for falling too far behind.", getMembersDropped());
+        counter(out, "relay_write_errors_total", "Writes to members that failed.", getWriteErrors());
+        counter(out, "relay_conflated_states_total", "States replaced by a newer one before being sent.", getConflatedStates());
+        counter(out, "relay_reaped_connections_total", "Connections dropped for going silent.", getReapedConnections());
+
+        // the server wide histogram has its own name, so summing the per party series doesn't count samples twice
+        String name = "relay_fanout_latency_all_seconds";
+        out.printf("# HELP %s Time from reading a host update to writing it to a member, in any party.\n", name);
+        out.printf("# TYPE %s histogram\n", name);
+        histogram(out, name, "", fanoutLatency);
+        if (maxPartySeries > 0) {
+            name = "relay_fanout_latency_seconds";
+            out.printf("# HELP %s Time from reading a host update to writing it to a member, per party.\n", name);
+            out.printf("# TYPE %s histogram\n", name);
+            for (Map.Entry<UUID, Party> e : busiestParties()) {
+                histogram(out, name, String.format("party=\"%s\"", e.getKey()), e.getValue().metrics.fanoutLatency);
+            }
+        }
+        out.flush();
+        return sw.toString();
+    }
+
+    /**
+     * Set how many parties get a histogram of their own, so the output doesn't grow with the number of parties.
+     *
+     * @param maxPartySeries The number of parties, picked by how many updates they've relayed, or 0 for none.
+     */
+    public void setMaxPartySeries(int maxPartySeries) {
+        if (maxPartySeries < 0) throw new IllegalArgumentException("The number of series can't be negative!");
+        this.maxPartySeries = maxPartySeries;
+    }
+
+    private List<Map.Entry<UUID, Party>> busiestParties() {
+        List<Map.Entry<UUID, Party>> parties = new ArrayList<>(partyMap.entrySet());
+        if (parties.size() <= maxPartySeries) return parties;
+        // the counts keep changing, so sort on a snapshot of them
+        Map<UUID, Long> counts = new HashMap<>();
+        for (Map.Entry<UUID, Party> e : parties) {
+            counts.put(e.getKey(), e.getValue().metrics.fanoutLatency.getCount());
+        }
+        parties.sort(Comparator.comparing((Map.Entry<UUID, Party> e) -> counts.get(e.getKey())).reversed());
+        return parties.subList(0, maxPartySeries);
+    }
+
+    private static void gauge(PrintWriter out, String name, String help, long value) {
+        out.printf("# HELP %s %s\n# TYPE %s gauge\n%s %d\n", name, help, name, name, value);
+    }
+
+    private static void counter(PrintWriter out, String name, String help, long value) {
+        out.printf("# HELP %s %s\n# TYPE %s counter\n%s %d\n", name, help, name, name, value);
+    }
+
+    private static void histogram(PrintWriter out, String name, String labels, Histogram h) {
+        String sep = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.NUM_BUCKETS - 1; i++) {
+            cumulative += h.getBucketCount(i);
+            // only report at powers of two, to keep the output manageable
+            long bound = Histogram.upperBound(i);
+            if (Long.bitCount(bound) == 1) {
+                out.printf("%s_bucket{%s%sle=\"%s\"} %d\n", name, labels, sep, microsToSeconds(bound), cumulative);
+            }
+        }
+        long count = h.getCount();
+        out.printf("%s_bucket{%s%sle=\"+Inf\"} %d\n", name, labels, sep, count);
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.printf("%s_sum%s %s\n", name, braces, microsToSeconds(h.getSum()));
+        out.printf("%s_count%s %d\n", name, braces, count);
+    }
+
+    private static String microsToSeconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+
+    /**
+     * The metrics for one party. Every member of the party writes through the same instance,
+     * which also feeds the server wide totals. Only updates relayed from the host are counted, which are the
+     * messages with an origin, and not the pings, clock samples and snapshots written to the same connections.
+     */
+    class PartyMetrics implements Connection.WriteListener {
+        final Histogram fanoutLatency = new Histogram();
+
+        @Override
+        public void onWritten(long latencyNanos, int bytes) {
+            if (latencyNanos < 0) return; // not a relayed update
+            long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+            fanoutLatency.record(micros);
+            RelayMetrics.this.fanoutLatency.record(micros);
+            messagesRelayed.increment();
+            bytesRelayed.add(bytes);
+        }
+
+        @Override
+        public void onWriteError() {
+            writeErrors.increment();
+        }
+
+        @Override
+        public void onOverflow() {
+            membersDropped.increment();
+        }
+
+        public void onConflated() {
+            conflatedStates.increment();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+/**
+ * The JMX view of {@link RelayMetrics}. Latencies are from reading a host's update to finishing the write
+ * to a member, in microseconds.
+ */
+public interface RelayMetricsMBean {
+    int getActiveParties();
+
+    long getActiveMembers();
+
+    long getMessagesRelayed();
+
+    long getBytesRelayed();
+
+    long getMembersDropped();
+
+    long getWriteErrors();
+
+    long getConflatedStates();
+
+    long getReapedConnections();
+
+    long getQueuedMessages();
+
+    int getMaxQueuedMessages();
+
+    long getPendingLatest();
+
+    long getFanoutLatencyP50Micros();
+
+    long getFanoutLatencyP99Micros();
+
+    long getFanoutLatencyP999Micros();
+
+    long getFanoutLatencyMaxMicros();
+}
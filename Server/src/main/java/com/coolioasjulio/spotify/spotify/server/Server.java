@@ -1,194 +1,1005 @@
 package com.coolioasjulio.spotify.spotify.server;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
-import java.io.BufferedReader;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Server {
+    /**
+     * Options are passed as --name=value. Supported options:
+     * --reactors=N       number of selector threads (default: number of cores)
+     * --max-queued=N     messages that may wait for a slow member before the overflow policy kicks in
+     * --overflow=POLICY  drop_connection or keep_latest
+     * --delivery=MODE    conflate (default) to keep only the newest pending state per member, or queued
+     * --port=N           port to listen on (default: 5000)
+     * --peers=A,B        host:port of other cluster nodes, to run as part of a cluster
+     * --node=HOST:PORT   address the other cluster nodes use to reach this one (default: localhost:port)
+     * --cluster-secret=S  shared by every cluster node, which refuses control messages without it. Can also be
+     *                     set with the SPOTIFY_CLUSTER_SECRET environment variable, to keep it out of ps
+     * --metrics-port=N   serve metrics at http://localhost:N/metrics, in the Prometheus text format
+     * --metrics-party-series=N  parties to report latency for individually, busiest first (default: 20)
+     * --heartbeat-ms=N   how often to ping clients that support heartbeats (default: 10000)
+     * --idle-timeout-ms=N  drop connections that haven't sent anything for this long (default: 30000)
+     * --resume-grace-ms=N  how long a dropped client may take to resume its session, or 0 to disable (default: 30000)
+     * --journal=PATH     keep a journal of parties at this path, and recover them from it on startup
+     * --log-level=LEVEL  trace, debug, info (default), warn, error or off
+     * --trace-sample=N   keep 1 in N per-message trace lines (default: 100)
+     */
     public static void main(String[] args) {
-        Server s = new Server(5000);
+        Map<String, String> opts = parseArgs(args);
+        if (opts.containsKey("log-level")) {
+            Log.setLevel(Log.parseLevel(opts.get("log-level"), Log.Level.INFO));
+        }
+        if (opts.containsKey("trace-sample")) {
+            Log.setTraceSample(Integer.parseInt(opts.get("trace-sample")));
+        }
+        int port = Integer.parseInt(opts.getOrDefault("port", "5000"));
+        int numReactors = Integer.parseInt(opts.getOrDefault("reactors",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        Server s = new Server(port, numReactors);
+        if (opts.containsKey("peers") || opts.containsKey("node")) {
+            String self = opts.getOrDefault("node", "localhost:" + port);
+            String peers = opts.getOrDefault("peers", "");
+            List<String> peerList = peers.isEmpty() ? Collections.emptyList() : Arrays.asList(peers.split(","));
+            String secret = opts.getOrDefault("cluster-secret", System.getenv("SPOTIFY_CLUSTER_SECRET"));
+            s.setCluster(new Cluster(self, peerList, secret));
+        }
+        if (opts.containsKey("max-queued")) {
+            s.setMaxQueued(Integer.parseInt(opts.get("max-queued")));
+        }
+        if (opts.containsKey("overflow")) {
+            s.setOverflowPolicy(Connection.OverflowPolicy.valueOf(opts.get("overflow").toUpperCase()));
+        }
+        if (opts.containsKey("delivery")) {
+            s.setDeliveryMode(DeliveryMode.valueOf(opts.get("delivery").toUpperCase()));
+        }
+        if (opts.containsKey("heartbeat-ms") || opts.containsKey("idle-timeout-ms")) {
+            s.setHeartbeat(Long.parseLong(opts.getOrDefault("heartbeat-ms", String.valueOf(DEFAULT_HEARTBEAT_MS))),
+                    Long.parseLong(opts.getOrDefault("idle-timeout-ms", String.valueOf(DEFAULT_IDLE_TIMEOUT_MS))));
+        }
+        if (opts.containsKey("resume-grace-ms")) {
+            s.setResumeGrace(Long.parseLong(opts.get("resume-grace-ms")));
+        }
+        if (opts.containsKey("journal")) {
+            s.setJournal(Paths.get(opts.get("journal")));
+        }
+        if (opts.containsKey("metrics-port")) {
+            s.setMetricsPort(Integer.parseInt(opts.get("metrics-port")));
+        }
+        if (opts.containsKey("metrics-party-series")) {
+            s.setMetricsPartySeries(Integer.parseInt(opts.get("metrics-party-series")));
+        }
         try {
             s.start();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Server stopped", e);
+        }
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("Unrecognized argument: " + arg);
+            int i = arg.indexOf('=');
+            if (i < 0) {
+                opts.put(arg.substring(2), "true");
+            } else {
+                opts.put(arg.substring(2, i), arg.substring(i + 1));
+            }
         }
+        return opts;
     }
 
+    private static final Log log = Log.get(Server.class);
+    private static final int MAX_HOPS = 2;
+    private static final int MAX_PROXY_QUEUED = 1024;
+    private static final long DEFAULT_HEARTBEAT_MS = 10_000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+    private static final long DEFAULT_RESUME_GRACE_MS = 30_000;
+
+    public enum DeliveryMode {
+        /**
+         * Every state is queued, subject to the overflow policy.
+         */
+        QUEUED,
+        /**
+         * Each member holds at most one pending state. Since a state is a complete snapshot of the host's
+         * playback, a newer one simply replaces an older one that hasn't been sent yet.
+         */
+        CONFLATE
+    }
 
     private int port;
     private Map<UUID, Party> partyMap;
+    private Map<String, Session> sessions; // by resume token
+    private Reactor[] reactors;
+    private int nextReactor;
+    private Gson gson;
+    private int maxQueued = 64;
+    private Connection.OverflowPolicy overflowPolicy = Connection.OverflowPolicy.KEEP_LATEST;
+    private DeliveryMode deliveryMode = DeliveryMode.CONFLATE;
+    private Cluster cluster;
+    private RelayMetrics metrics;
+    private int metricsPort = -1;
+    private long heartbeatMillis = DEFAULT_HEARTBEAT_MS;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MS;
+    private long resumeGraceMillis = DEFAULT_RESUME_GRACE_MS;
+    private Path journalPath;
+    private PartyJournal journal;
+
     public Server(int port) {
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a server which serves every connection from a fixed pool of selector threads.
+     *
+     * @param port        The port to listen on.
+     * @param numReactors The number of selector threads. Each one multiplexes many hosts and members.
+     */
+    public Server(int port, int numReactors) {
         this.port = port;
-        partyMap = Collections.synchronizedMap(new HashMap<>());
+        partyMap = new ConcurrentHashMap<>();
+        sessions = new ConcurrentHashMap<>();
+        reactors = new Reactor[Math.max(1, numReactors)];
+        gson = new Gson();
+        metrics = new RelayMetrics(partyMap);
     }
 
-    public void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(port);
-        while (!Thread.interrupted()) {
-            try {
-                System.out.println("Waiting for connection...");
-                Socket s = serverSocket.accept();
-                System.out.println("Received connection from: " + s.getInetAddress());
-                launchSession(s);
-                Thread.yield();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Set how many messages may be waiting to be written to a single member.
+     * Each member is drained independently, so this only affects members that fall behind.
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Set what happens to a member whose queue is full.
+     */
+    public void setOverflowPolicy(Connection.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setDeliveryMode(DeliveryMode deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    /**
+     * Set how dead connections are detected. Clients that support heartbeats are pinged every interval, and
+     * answer with a pong. Hosts and those clients are dropped once they've been silent for the idle timeout,
+     * and connections that never finish the handshake are dropped after one interval.
+     * Older members never send anything, so they're only dropped when a write to them fails.
+     */
+    public void setHeartbeat(long heartbeatMillis, long idleTimeoutMillis) {
+        if (heartbeatMillis <= 0 || idleTimeoutMillis <= heartbeatMillis) {
+            throw new IllegalArgumentException("The idle timeout must be longer than the heartbeat interval!");
         }
+        this.heartbeatMillis = heartbeatMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
     }
 
-    private void launchSession(Socket s) {
-        Thread t = new Thread(() -> sessionTask(s));
-        t.start();
+    /**
+     * Set how long a client that dropped without saying goodbye may take to reconnect and resume its session.
+     * Until then a host's party stays open, and a member still counts towards its party.
+     *
+     * @param graceMillis The grace period, or 0 to end sessions as soon as the connection drops.
+     */
+    public void setResumeGrace(long graceMillis) {
+        if (graceMillis < 0) throw new IllegalArgumentException("The grace period can't be negative!");
+        this.resumeGraceMillis = graceMillis;
     }
 
-    private void handleCreateSession(Socket s, BufferedReader in, PrintStream out) {
-        UUID uuid = UUID.randomUUID();
-        out.println(uuid.toString());
-        out.flush();
-        Party p = new Party(new Member(s, in, out));
-        partyMap.put(uuid, p);
-        System.out.printf("Party created with code: %s\nNum parties: %d\n", uuid, partyMap.size());
-        try {
+    /**
+     * Journal every party to the given file, and recover the parties in it on startup. Recovered parties wait
+     * for their host to resume for the grace period, and members can rejoin them with the same party id.
+     * Must be called before {@link #start()}.
+     */
+    public void setJournal(Path journalPath) {
+        this.journalPath = journalPath;
+    }
+
+    /**
+     * Run this server as one node of a cluster. Must be called before {@link #start()}.
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Serve metrics over HTTP on the loopback interface. Must be called before {@link #start()}.
+     */
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * Set how many of the busiest parties get their own latency histogram in the Prometheus output.
+     * Every party is still counted in the server wide one.
+     */
+    public void setMetricsPartySeries(int maxPartySeries) {
+        metrics.setMaxPartySeries(maxPartySeries);
+    }
+
+    public RelayMetricsMBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get how many states were replaced before being sent, summed over every member of the party.
+     *
+     * @return The count, or -1 if there is no such party.
+     */
+    public long getConflatedCount(UUID uuid) {
+        Party p = partyMap.get(uuid);
+        return p == null ? -1 : p.conflated.sum();
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            reactors[i].start("reactor-" + i);
+        }
+        registerMetrics();
+        if (journalPath != null) {
+            recover();
+        }
+        MetricsServer metricsServer = null;
+        if (metricsPort >= 0) {
+            metricsServer = new MetricsServer(metricsPort, metrics);
+            metricsServer.start();
+            log.info("Serving metrics port=%d", metricsPort);
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             Selector acceptSelector = Selector.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            if (cluster != null) {
+                cluster.announce();
+            }
+            log.info("Waiting for connections port=%d reactors=%d", port, reactors.length);
             while (!Thread.interrupted()) {
-                String line = in.readLine();
-                if (line == null) break; // stream closed
-                System.out.printf("%s : %s\n", p.host.socket.getInetAddress(), line);
-                List<Member> toRemove = new ArrayList<>();
-                for (int i = 0; i < p.members.size(); i++) {
-                    Member m = p.members.get(i);
-                    m.out.println(line);
-                    m.out.flush();
-                    if (m.out.checkError()) {
-                        m.socket.close();
-                        toRemove.add(m);
+                acceptSelector.select();
+                Iterator<SelectionKey> it = acceptSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                    SocketChannel s;
+                    while ((s = serverChannel.accept()) != null) {
+                        log.debug("Received connection peer=%s", s.socket().getInetAddress());
+                        launchSession(s);
                     }
                 }
-                if (p.members.removeAll(toRemove)) {
-                    out.println(p.members.size());
-                    out.flush();
-                }
-                Thread.yield();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         } finally {
-            partyMap.remove(uuid);
-            System.out.printf("Party ended with code: %s\nNum parties: %d\n", uuid, partyMap.size());
-            for (Member m : p.members) {
-                try {
-                    m.socket.close();
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
+            for (Reactor r : reactors) {
+                r.stop();
+            }
+            if (metricsServer != null) {
+                metricsServer.stop();
+            }
+            if (journal != null) {
+                journal.stop();
+            }
+        }
+    }
+
+    /**
+     * Rebuild the parties from the journal, then start journaling again from a fresh snapshot of them.
+     * The recovered parties have no connections yet, so each one is held for the grace period like a
+     * dropped host, and each session like a dropped client.
+     */
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        PartyJournal.Recovery recovery = PartyJournal.recover(journalPath);
+        Reactor r = reactors[0];
+        int numSessions = 0;
+        for (Map.Entry<UUID, PartyJournal.RecoveredParty> entry : recovery.parties.entrySet()) {
+            UUID uuid = entry.getKey();
+            Party p = new Party(null, metrics.newPartyMetrics());
+            p.latestState = entry.getValue().state;
+            partyMap.put(uuid, p);
+            for (Map.Entry<String, Boolean> s : entry.getValue().sessions.entrySet()) {
+                Session session = new Session(s.getKey(), uuid, p, s.getValue(), null);
+                sessions.put(session.token, session);
+                r.execute(() -> r.schedule(() -> {
+                    if (session.expire(0)) endSession(session);
+                }, resumeGraceMillis));
+                numSessions++;
             }
+            r.execute(() -> r.schedule(() -> {
+                if (p.host == null && !p.isEnded()) endParty(uuid, p);
+            }, resumeGraceMillis));
         }
+        long recovered = System.nanoTime();
+        journal = new PartyJournal(journalPath, partyMap, sessions);
+        journal.start();
+        log.info("Recovered journal parties=%d sessions=%d records=%d truncated=%b recovery=%dms snapshot=%dms",
+                partyMap.size(), numSessions, recovery.records, recovery.truncated,
+                (recovered - start) / 1_000_000L, (System.nanoTime() - recovered) / 1_000_000L);
     }
 
-    private void handleJoinSession(Socket s, BufferedReader in, PrintStream out, InitialRequest req) {
-        UUID uuid = null;
+    private void registerMetrics() {
         try {
-            uuid = UUID.fromString(req.id);
-        } catch (IllegalArgumentException ignored) {}
-        if (uuid != null && partyMap.containsKey(uuid)) {
-            out.println(uuid.toString());
-            out.flush();
-            Party party = partyMap.get(uuid);
-            party.members.add(new Member(s, in, out));
-            party.host.out.println(party.members.size());
-            party.host.out.flush();
+            ObjectName name = new ObjectName("com.coolioasjulio.spotify:type=RelayMetrics,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        } catch (JMException e) {
+            log.warn("Unable to register metrics MBean", e);
+        }
+    }
+
+    private void launchSession(SocketChannel s) {
+        // Spread connections round robin across the reactors
+        Reactor r = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        r.register(s, new HandshakeHandler());
+    }
+
+    private void handleCreateSession(Connection c, int protocol) {
+        UUID uuid = cluster != null ? cluster.newPartyId() : UUID.randomUUID();
+        c.setOutboundLimit(maxQueued, Connection.OverflowPolicy.KEEP_LATEST); // hosts only receive member counts
+        Member host = new Member(c, protocol);
+        Party p = new Party(host, metrics.newPartyMetrics());
+        if (journal != null) {
+            journal.onCreated(uuid);
+        }
+        Session session = newSession(uuid, p, true, host);
+        c.setHandler(new HostHandler(uuid, p, host, session));
+        c.setHeartbeat(heartbeatMillis);
+        // Register the party before acknowledging, so the code is joinable as soon as the host sees it
+        partyMap.put(uuid, p);
+        acknowledge(c, uuid, protocol, session);
+        log.info("Party created party=%s host=%s protocol=%d parties=%d", uuid, c.getAddress(), protocol, partyMap.size());
+    }
+
+    private void relay(UUID uuid, Party p, Broadcast b) {
+        if (log.isTraceEnabled()) {
+            log.trace("Relaying host=%s members=%d state=%s", p.host.connection.getAddress(), p.size(), b);
+        }
+        MusicState state = b.getState();
+        if (state != null) {
+            p.latestState = state;
+            if (journal != null) {
+                journal.onState(uuid, p);
+            }
+        }
+        // Encode once per protocol, and let every member write from the same bytes
+        boolean removed = false;
+        for (Member m : p.getMembers()) {
+            SharedBuffer buf = b.encoded(m.protocol);
+            if (buf == null) continue;
+            if (deliveryMode == DeliveryMode.CONFLATE) {
+                Connection.Delivery d = m.connection.sendLatest(buf);
+                if (d == Connection.Delivery.REPLACED) {
+                    p.conflated.increment();
+                    p.metrics.onConflated();
+                } else if (d == Connection.Delivery.CLOSED) {
+                    removed |= p.removeMember(m);
+                }
+            } else if (!m.connection.send(buf)) {
+                removed |= p.removeMember(m);
+            }
+        }
+        b.release();
+        if (removed) {
+            sendMemberCount(p);
+        }
+    }
+
+    private void sendMemberCount(Party p) {
+        int count = p.getMemberCount();
+        Member host = p.host;
+        if (host == null) return; // a recovered party whose host hasn't resumed yet
+        if (host.protocol >= BinaryProtocol.BINARY_VERSION) {
+            byte[] frame = BinaryProtocol.encodeMemberCountFrame(count);
+            SharedBuffer buf = SharedBuffer.wrap(frame, 0, frame.length);
+            host.connection.send(buf);
+            buf.release();
+        } else {
+            host.connection.send(String.valueOf(count));
+        }
+    }
+
+    /**
+     * Start a resumable session, if the client supports them and resumption is enabled.
+     *
+     * @return The session, or null if the connection can't be resumed.
+     */
+    private Session newSession(UUID uuid, Party p, boolean isHost, Member m) {
+        if (m.protocol < BinaryProtocol.RESUME_VERSION || resumeGraceMillis <= 0) return null;
+        Session session = new Session(UUID.randomUUID().toString(), uuid, p, isHost, m);
+        sessions.put(session.token, session);
+        if (journal != null) {
+            journal.onSession(session);
+        }
+        return session;
+    }
+
+    private void endSession(Session session) {
+        sessions.remove(session.token);
+        if (journal != null) {
+            journal.onSessionEnded(session);
+        }
+    }
+
+    /**
+     * Called when a connection with a session has closed. Unless the client said goodbye, the session is held
+     * for the grace period, and the cleanup is put off until it expires without being resumed.
+     *
+     * @return True if the session is being held, or has already been resumed by another connection,
+     * in which case the caller must leave the party alone.
+     */
+    private boolean suspend(Connection c, Session session, Member m, Runnable onExpired) {
+        int epoch = session.suspend(m);
+        if (epoch < 0) {
+            if (!session.isEnded()) return true; // resumed before this connection noticed it was closed
+            endSession(session);
+            return false;
+        }
+        log.info("Connection dropped, holding session peer=%s host=%b grace=%dms", c.getAddress(), session.isHost, resumeGraceMillis);
+        c.getReactor().schedule(() -> {
+            if (session.expire(epoch)) {
+                endSession(session);
+                log.info("Session expired host=%b", session.isHost);
+                onExpired.run();
+            }
+        }, resumeGraceMillis);
+        return true;
+    }
+
+    /**
+     * Acknowledge a create or join. Clients that asked for a newer protocol are told which one they got,
+     * and switch to it as soon as they've read the acknowledgement.
+     */
+    private void acknowledge(Connection c, UUID uuid, int protocol, Session session) {
+        if (protocol >= BinaryProtocol.RESUME_VERSION && session != null) {
+            c.send(uuid + " " + protocol + " " + heartbeatMillis + " " + session.token);
+            c.setFraming(Connection.Framing.FRAMES);
+        } else if (protocol >= BinaryProtocol.HEARTBEAT_VERSION) {
+            c.send(uuid + " " + protocol + " " + heartbeatMillis);
+            c.setFraming(Connection.Framing.FRAMES);
+        } else if (protocol >= BinaryProtocol.BINARY_VERSION) {
+            c.send(uuid + " " + protocol);
+            c.setFraming(Connection.Framing.FRAMES);
+        } else {
+            c.send(uuid.toString());
+        }
+    }
+
+    private void endParty(UUID uuid, Party p) {
+        partyMap.remove(uuid);
+        log.info("Party ended party=%s parties=%d conflated=%d", uuid, partyMap.size(), p.conflated.sum());
+        for (Member m : p.end()) {
+            if (m.protocol >= BinaryProtocol.RESUME_VERSION) {
+                // tell the member this is for good, so it doesn't try to resume
+                sendBye(m.connection);
+                m.connection.closeAfterFlush();
+            } else {
+                m.connection.close();
+            }
+        }
+        if (journal != null) {
+            journal.onEnded(uuid);
+        }
+        if (cluster != null) {
+            cluster.onPartyEnded(uuid);
+        }
+    }
+
+    private void handleJoinSession(Connection c, InitialRequest req, int protocol) {
+        UUID uuid = parsePartyId(req.id);
+        Party party = uuid == null ? null : partyMap.get(uuid);
+        if (party == null && uuid != null && forward(c, uuid, req)) {
+            return;
+        }
+        if (party != null) {
+            Member m = new Member(c, protocol);
+            Session session = newSession(uuid, party, false, m);
+            acknowledge(c, uuid, protocol, session);
+            if (!admitMember(party, m, session)) return;
+            sendMemberCount(party);
+            log.debug("Member joined party=%s peer=%s protocol=%d members=%d", uuid, c.getAddress(), protocol, party.size());
+        } else {
+            error(c);
+        }
+    }
+
+    /**
+     * Pick up a session that was dropped without a goodbye. The client is acknowledged just like a create or
+     * join, with the same party id and token. A host gets its party back, and a member is synced with the
+     * latest state straight away.
+     */
+    private void handleResume(Connection c, InitialRequest req, int protocol) {
+        UUID uuid = parsePartyId(req.id);
+        Party party = uuid == null ? null : partyMap.get(uuid);
+        if (party == null && uuid != null && forward(c, uuid, req)) {
+            return;
+        }
+        Session session = sessions.get(req.resume);
+        Member m = new Member(c, protocol);
+        if (party == null || session == null || session.party != party
+                || protocol < BinaryProtocol.RESUME_VERSION || !session.resume(m)) {
+            log.info("Unable to resume session party=%s peer=%s", req.id, c.getAddress());
+            error(c);
+            return;
+        }
+        acknowledge(c, uuid, protocol, session);
+        if (session.isHost) {
+            c.setOutboundLimit(maxQueued, Connection.OverflowPolicy.KEEP_LATEST);
+            party.host = m;
+            c.setHandler(new HostHandler(uuid, party, m, session));
+            c.setHeartbeat(heartbeatMillis);
+            // the host may have missed some while it was away
+            sendMemberCount(party);
+        } else if (!admitMember(party, m, session)) {
+            return;
+        }
+        log.info("Session resumed party=%s peer=%s host=%b", uuid, c.getAddress(), session.isHost);
+    }
+
+    /**
+     * Start relaying to a member that has already been acknowledged.
+     *
+     * @return False if the party ended in the meantime, in which case the connection is closed.
+     */
+    private boolean admitMember(Party party, Member m, Session session) {
+        Connection c = m.connection;
+        c.setOutboundLimit(maxQueued, overflowPolicy);
+        c.setWriteListener(party.metrics);
+        c.setHandler(new MemberHandler(party, m, session));
+        // older members never send anything, so there's no way to tell if they've gone idle
+        c.setHeartbeat(m.protocol >= BinaryProtocol.HEARTBEAT_VERSION ? heartbeatMillis : 0);
+        // Sync the new member straight away instead of waiting for the host's next update
+        MusicState snapshot = party.latestState;
+        sendSnapshot(m, snapshot);
+        if (!party.addMember(m)) {
+            // the host left while we were joining
+            c.close();
+            return false;
+        }
+        if (party.latestState != snapshot) {
+            // an update was relayed before the member was added, and it would have been missed
+            sendSnapshot(m, party.latestState);
+        }
+        return true;
+    }
+
+    private void sendSnapshot(Member m, MusicState state) {
+        if (state == null) return;
+        SharedBuffer buf;
+        if (m.protocol >= BinaryProtocol.BINARY_VERSION) {
+            byte[] frame = BinaryProtocol.encodeStateFrame(state);
+            buf = SharedBuffer.wrap(frame, 0, frame.length);
+        } else {
+            buf = SharedBuffer.encode(gson.toJson(state));
+        }
+        if (deliveryMode == DeliveryMode.CONFLATE) {
+            m.connection.sendLatest(buf);
         } else {
-            error(s, out);
+            m.connection.send(buf);
+        }
+        buf.release();
+    }
+
+    /**
+     * Answer a read-only status query from the cached state, without involving the host, and hang up.
+     */
+    private void handleStatusRequest(Connection c, InitialRequest req) {
+        UUID uuid = parsePartyId(req.id);
+        Party party = uuid == null ? null : partyMap.get(uuid);
+        if (party == null && uuid != null && forward(c, uuid, req)) {
+            return;
+        }
+        if (party != null) {
+            c.sendAndClose(gson.toJson(new PartyStatus(uuid, party)));
+        } else {
+            error(c);
+        }
+    }
+
+    /**
+     * If the party is hosted on another cluster node, transparently proxy this connection to it.
+     *
+     * @return True if the connection is being forwarded.
+     */
+    private boolean forward(Connection c, UUID uuid, InitialRequest req) {
+        if (cluster == null || req.hops >= MAX_HOPS) return false;
+        String node = cluster.locate(uuid);
+        if (node == null) return false;
+        req.hops++;
+        Connection upstream;
+        try {
+            upstream = c.getReactor().connect(Cluster.parseAddress(node), new ProxyHandler(c));
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Unable to forward node=%s: %s", node, e.getMessage());
+            return false;
         }
+        log.info("Forwarding request party=%s node=%s", uuid, node);
+        c.setHeartbeat(0); // the node we forward to takes care of this
+        upstream.setFraming(Connection.Framing.RAW);
+        upstream.setOutboundLimit(MAX_PROXY_QUEUED, Connection.OverflowPolicy.DROP_CONNECTION);
+        c.setFraming(Connection.Framing.RAW);
+        c.setOutboundLimit(MAX_PROXY_QUEUED, Connection.OverflowPolicy.DROP_CONNECTION);
+        c.setHandler(new ProxyHandler(upstream));
+        upstream.send(gson.toJson(req));
+        return true;
     }
 
-    private void sessionTask(Socket s) {
-        BufferedReader in;
-        PrintStream out;
+    /**
+     * Handle a control message from another cluster node. Anyone can connect to this port, so a message without
+     * the cluster's secret is refused before it can change where parties are routed.
+     */
+    private void handleClusterRequest(Connection c, InitialRequest req) {
+        if (cluster == null || !cluster.isTrusted(req.secret)) {
+            log.warn("Refused a cluster message from outside the cluster peer=%s op=%s", c.getAddress(), req.cluster);
+            error(c);
+            return;
+        }
+        UUID uuid = parsePartyId(req.id);
+        switch (req.cluster) {
+            case "add":
+                if (!Cluster.isValidNode(req.node)) {
+                    error(c);
+                    return;
+                }
+                cluster.addNode(req.node, partyMap.keySet());
+                c.sendAndClose("OK " + String.join(" ", cluster.getNodes()));
+                break;
+            case "locate":
+                if (uuid == null || !Cluster.isValidNode(req.node)) {
+                    error(c);
+                    return;
+                }
+                cluster.register(uuid, req.node);
+                c.sendAndClose("OK");
+                break;
+            case "forget":
+                if (uuid != null) cluster.forget(uuid);
+                c.sendAndClose("OK");
+                break;
+            default:
+                error(c);
+        }
+    }
+
+    private UUID parsePartyId(String id) {
+        if (id == null) return null;
+        try {
+            return UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void sessionTask(Connection c, String line) {
         InitialRequest req;
         try {
-            in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-            out = new PrintStream(s.getOutputStream());
-            Gson gson = new Gson();
-            req = gson.fromJson(in.readLine(), InitialRequest.class);
-        } catch (IOException e) {
-            e.printStackTrace();
+            req = gson.fromJson(line, InitialRequest.class);
+        } catch (JsonParseException e) {
+            req = null;
+        }
+        if (req == null) {
+            log.info("Malformed request, dropping connection peer=%s", c.getAddress());
+            error(c);
             return;
         }
-        System.out.println("Received request: " + req.toString());
-        if (req.create) {
-            handleCreateSession(s, in, out);
+        log.debug("Received request peer=%s request=%s", c.getAddress(), req);
+        int protocol = Math.min(Math.max(req.protocol, 1), BinaryProtocol.VERSION);
+        if (req.cluster != null) {
+            handleClusterRequest(c, req);
+        } else if (req.create) {
+            handleCreateSession(c, protocol);
+        } else if (req.status) {
+            handleStatusRequest(c, req);
+        } else if (req.resume != null) {
+            handleResume(c, req, protocol);
         } else if (req.id != null) {
-            handleJoinSession(s, in, out, req);
+            handleJoinSession(c, req, protocol);
         } else {
-            System.out.println("Request denied, unable to join group.");
-            error(s, out);
+            log.info("Request denied, unable to join group peer=%s", c.getAddress());
+            error(c);
+        }
+    }
+
+    private void error(Connection c) {
+        c.sendAndClose("ERROR 400");
+    }
+
+    /**
+     * Ping a member that supports heartbeats, or reap it if it has been silent for too long.
+     */
+    private void heartbeat(Connection c, Member m, long idleMillis) {
+        if (idleMillis >= idleTimeoutMillis) {
+            reap(c, idleMillis);
+        } else if (m.protocol >= BinaryProtocol.HEARTBEAT_VERSION) {
+            byte[] frame = BinaryProtocol.encodeFrame(BinaryProtocol.TYPE_PING, new byte[0], 0, 0);
+            SharedBuffer buf = SharedBuffer.wrap(frame, 0, frame.length);
+            c.send(buf);
+            buf.release();
         }
     }
 
-    private void error(Socket s, PrintStream out) {
+    /**
+     * Echo the client's timestamp back along with ours, so it can work out the offset between our clocks.
+     * Called on the reactor thread as soon as the request is read, to keep the server's share of the round
+     * trip as small as possible.
+     */
+    private void answerTimeRequest(Connection c, byte[] payload, int offset, int length) {
+        long now = System.currentTimeMillis();
+        long[] times;
         try {
-            out.println("ERROR 400");
-            out.flush();
-            s.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            times = BinaryProtocol.decodeTimes(payload, offset, length);
+        } catch (IllegalArgumentException e) {
+            log.warn("Malformed time request peer=%s", c.getAddress());
+            return;
         }
+        if (times.length < 1) return;
+        byte[] frame = BinaryProtocol.encodeTimeFrame(BinaryProtocol.TYPE_TIME_RESPONSE, times[0], now);
+        SharedBuffer buf = SharedBuffer.wrap(frame, 0, frame.length);
+        c.send(buf);
+        buf.release();
     }
 
-    private static class InitialRequest {
-        private boolean create;
-        private String id;
+    private void sendBye(Connection c) {
+        byte[] frame = BinaryProtocol.encodeFrame(BinaryProtocol.TYPE_BYE, new byte[0], 0, 0);
+        SharedBuffer buf = SharedBuffer.wrap(frame, 0, frame.length);
+        c.send(buf);
+        buf.release();
+    }
+
+    private void reap(Connection c, long idleMillis) {
+        log.info("Reaping idle connection peer=%s idle=%dms", c.getAddress(), idleMillis);
+        metrics.onReaped();
+        c.close();
+    }
 
+    /**
+     * Handles a connection until it has sent its initial request.
+     */
+    private class HandshakeHandler implements Connection.Handler {
         @Override
-        public String toString() {
-            return String.format("InitialRequest(create=%b, id=%s)", create, id);
+        public void onLine(Connection c, String line) {
+            sessionTask(c, line);
         }
-    }
 
-    private static class MusicState {
-        public long timestamp;
-        public int songPos;
-        public boolean isPaused;
-        public String songID;
+        @Override
+        public void onOpen(Connection c) {
+            c.setHeartbeat(heartbeatMillis);
+        }
 
-        public MusicState(long timestamp, int songPos, boolean isPaused, String songID) {
-            this.timestamp = timestamp;
-            this.songPos = songPos;
-            this.isPaused = isPaused;
-            this.songID = songID;
+        @Override
+        public void onHeartbeat(Connection c, long idleMillis) {
+            // a whole interval without sending a request
+            reap(c, idleMillis);
+        }
+
+        @Override
+        public void onClose(Connection c) {
         }
     }
 
-    private static class Party {
-        public Member host;
-        public List<Member> members;
+    private class HostHandler implements Connection.Handler {
+        private final UUID uuid;
+        private final Party party;
+        private final Member host;
+        private final Session session; // null if the host can't resume
 
-        public Party(Member host) {
+        public HostHandler(UUID uuid, Party party, Member host, Session session) {
+            this.uuid = uuid;
+            this.party = party;
             this.host = host;
-            members = Collections.synchronizedList(new ArrayList<>());
+            this.session = session;
+        }
+
+        @Override
+        public void onLine(Connection c, String line) {
+            relay(uuid, party, new Broadcast(line));
+        }
+
+        @Override
+        public void onFrame(Connection c, byte type, byte[] payload, int offset, int length) {
+            if (type == BinaryProtocol.TYPE_BYE && session != null) {
+                session.end();
+                c.close();
+                return;
+            }
+            if (type == BinaryProtocol.TYPE_TIME_REQUEST) {
+                answerTimeRequest(c, payload, offset, length);
+                return;
+            }
+            if (type != BinaryProtocol.TYPE_STATE) return;
+            MusicState state;
+            try {
+                state = BinaryProtocol.decodeState(payload, offset, length);
+            } catch (IllegalArgumentException e) {
+                log.warn("Malformed state from host peer=%s", c.getAddress());
+                return;
+            }
+            byte[] frame = BinaryProtocol.encodeFrame(type, payload, offset, length);
+            relay(uuid, party, new Broadcast(state, SharedBuffer.wrap(frame, 0, frame.length)));
+        }
+
+        @Override
+        public void onHeartbeat(Connection c, long idleMillis) {
+            heartbeat(c, host, idleMillis);
+        }
+
+        @Override
+        public void onClose(Connection c) {
+            if (session != null && suspend(c, session, host, () -> endParty(uuid, party))) return;
+            endParty(uuid, party);
         }
     }
 
-    private static class Member {
-        public Socket socket;
-        public BufferedReader in;
-        public PrintStream out;
-        public Member(Socket socket, BufferedReader in, PrintStream out) {
-            this.socket = socket;;
-            this.in = in;
-            this.out = out;
+    private class MemberHandler implements Connection.Handler {
+        private final Party party;
+        private final Member member;
+        private final Session session; // null if the member can't resume
+
+        public MemberHandler(Party party, Member member, Session session) {
+            this.party = party;
+            this.member = member;
+            this.session = session;
+        }
+
+        @Override
+        public void onLine(Connection c, String line) {
+            // members don't send anything after the handshake, besides pongs and goodbyes
+        }
+
+        @Override
+        public void onFrame(Connection c, byte type, byte[] payload, int offset, int length) {
+            if (type == BinaryProtocol.TYPE_BYE && session != null) {
+                session.end();
+                c.close();
+            } else if (type == BinaryProtocol.TYPE_TIME_REQUEST) {
+                answerTimeRequest(c, payload, offset, length);
+            }
+        }
+
+        @Override
+        public void onHeartbeat(Connection c, long idleMillis) {
+            heartbeat(c, member, idleMillis);
+        }
+
+        @Override
+        public void onClose(Connection c) {
+            boolean removed = party.removeMember(member);
+            if (session != null && c.isOverflowed()) {
+                // dropped for falling behind, which resuming wouldn't fix, so it's gone for good
+                if (session.end(member)) endSession(session);
+            } else if (session != null && suspend(c, session, member, () -> sendMemberCount(party))) {
+                // a held member still counts, so the host only hears about it if the session expires
+                return;
+            }
+            if (removed) {
+                sendMemberCount(party);
+            }
+        }
+    }
+
+    /**
+     * A single update from a host, encoded lazily for each protocol that a member needs.
+     */
+    private class Broadcast {
+        private final long originNanos = System.nanoTime();
+        private final String line;
+        private MusicState state;
+        private SharedBuffer json, binary;
+        private boolean parsed;
+
+        /**
+         * A line from a JSON host. It's forwarded as is, and parsed once so the party can cache the state.
+         */
+        Broadcast(String line) {
+            this.line = line;
+            json = SharedBuffer.encode(line);
+            json.setOriginNanos(originNanos);
+        }
+
+        /**
+         * A state from a binary host, along with the frame it arrived in.
+         */
+        Broadcast(MusicState state, SharedBuffer frame) {
+            line = null;
+            this.state = state;
+            parsed = true;
+            binary = frame;
+            binary.setOriginNanos(originNanos);
+        }
+
+        /**
+         * Get the bytes to send to a member speaking the given protocol,
+         * or null if this update can't be expressed in it.
+         */
+        SharedBuffer encoded(int protocol) {
+            if (protocol >= BinaryProtocol.BINARY_VERSION) {
+                if (binary == null && getState() != null) {
+                    byte[] frame = BinaryProtocol.encodeStateFrame(state);
+                    binary = SharedBuffer.wrap(frame, 0, frame.length);
+                    binary.setOriginNanos(originNanos);
+                }
+                return binary;
+            } else {
+                if (json == null) {
+                    json = SharedBuffer.encode(gson.toJson(state));
+                    json.setOriginNanos(originNanos);
+                }
+                return json;
+            }
+        }
+
+        MusicState getState() {
+            if (!parsed) {
+                parsed = true;
+                try {
+                    state = gson.fromJson(line, MusicState.class);
+                } catch (JsonParseException e) {
+                    log.warn("Unable to parse state: %s", line);
+                }
+            }
+            return state;
+        }
+
+        void release() {
+            if (json != null) json.release();
+            if (binary != null) binary.release();
+        }
+
+        @Override
+        public String toString() {
+            return line != null ? line : state.toString();
+        }
+    }
+
+    static class InitialRequest {
+        private boolean create;
+        private String id;
+        private boolean status; // only ask about the party, don't join it
+        private int protocol; // 0 or 1 for JSON lines, 2 and up for binary frames, see BinaryProtocol
+        private int hops; // how many cluster nodes have already forwarded this request
+        private String cluster; // set on control messages between cluster nodes
+        private String node;
+        private String secret; // the cluster's, on control messages
+        private String resume; // token of a session to resume in the party given by id
+
+        @Override
+        public String toString() {
+            // the token and the secret are credentials, so they stay out of the logs
+            return String.format("InitialRequest(create=%b, id=%s, status=%b, protocol=%d, hops=%d, cluster=%s, node=%s, resume=%b)",
+                    create, id, status, protocol, hops, cluster, node, resume != null);
+        }
+    }
+
+    private static class PartyStatus {
+        private String id;
+        private int members;
+        private MusicState state;
+
+        PartyStatus(UUID uuid, Party party) {
+            id = uuid.toString();
+            members = party.getMemberCount();
+            state = party.latestState;
         }
     }
 }
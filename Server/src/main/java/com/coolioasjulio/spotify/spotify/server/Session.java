@@ -0,0 +1,105 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.util.UUID;
+
+/**
+ * A resumable place in a party, for a host or a member. When the connection drops without a goodbye, the
+ * session is suspended instead of ended, and a new connection presenting the token within the grace period
+ * takes over where the old one left off.
+ *
+ * A suspended member still counts towards the party's size, so a blip doesn't show up as a leave and a join.
+ */
+class Session {
+    public final String token;
+    public final UUID partyId;
+    public final Party party;
+    public final boolean isHost;
+    private Member member; // null while suspended
+    private boolean ended;
+    private int epoch;
+
+    /**
+     * @param member The connection that holds the session, or null to start out suspended,
+     *               as when restoring sessions from the journal.
+     */
+    public Session(String token, UUID partyId, Party party, boolean isHost, Member member) {
+        this.token = token;
+        this.partyId = partyId;
+        this.party = party;
+        this.isHost = isHost;
+        this.member = member;
+        if (member == null && !isHost) party.suspended.incrementAndGet();
+    }
+
+    public synchronized boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Called when the session's connection has closed without saying goodbye.
+     *
+     * @return The epoch to pass to {@link #expire(int)} once the grace period is up, or -1 if the session
+     * has ended or already moved to another connection. A session whose party has ended is ended too.
+     */
+    public synchronized int suspend(Member m) {
+        if (ended || member != m) return -1;
+        if (party.isEnded()) {
+            ended = true;
+            return -1;
+        }
+        member = null;
+        if (!isHost) party.suspended.incrementAndGet();
+        return ++epoch;
+    }
+
+    /**
+     * Hand the session to a new connection. If the old connection is somehow still open, it's closed,
+     * since the client has clearly given up on it.
+     *
+     * @return False if the session or its party has already ended.
+     */
+    public synchronized boolean resume(Member m) {
+        if (ended || party.isEnded()) return false;
+        if (member != null) {
+            member.connection.close();
+        } else if (!isHost) {
+            party.suspended.decrementAndGet();
+        }
+        member = m;
+        epoch++;
+        return true;
+    }
+
+    /**
+     * End the session if it's still suspended from the given epoch.
+     *
+     * @return True if the session was ended, in which case the caller should clean up after it.
+     */
+    public synchronized boolean expire(int epoch) {
+        if (ended || member != null || this.epoch != epoch) return false;
+        ended = true;
+        if (!isHost) party.suspended.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * End the session for good if the given connection still holds it, for example because it was dropped
+     * for falling behind.
+     *
+     * @return False if the session had already ended or moved to another connection.
+     */
+    public synchronized boolean end(Member m) {
+        if (ended || member != m) return false;
+        ended = true;
+        return true;
+    }
+
+    /**
+     * End the session for good, for example because the client said goodbye.
+     */
+    public synchronized void end() {
+        if (ended) return;
+        ended = true;
+        if (member == null && !isHost) party.suspended.decrementAndGet();
+    }
+}
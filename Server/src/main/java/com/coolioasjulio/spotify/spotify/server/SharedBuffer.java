@@ -0,0 +1,107 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable, reference counted message that can be queued on many connections at once.
+ * A broadcast is encoded a single time, and every member writes from its own view of the same bytes.
+ *
+ * Small messages live in pooled direct buffers, so writing them doesn't need the extra copy into a temporary
+ * direct buffer that heap buffers go through. The buffer goes back to the pool once the last reference is released.
+ */
+class SharedBuffer {
+    private static final int POOLED_CAPACITY = 512;
+    private static final int MAX_POOLED = 4096;
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger poolSize = new AtomicInteger();
+
+    /**
+     * Encode a line of text, including the trailing newline.
+     * The returned buffer holds one reference, which belongs to the caller.
+     */
+    public static SharedBuffer encode(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        return wrap(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Copy raw bytes into a new buffer. The returned buffer holds one reference, which belongs to the caller.
+     */
+    public static SharedBuffer wrap(byte[] bytes, int offset, int length) {
+        ByteBuffer buf = null;
+        if (length <= POOLED_CAPACITY) {
+            buf = pool.poll();
+            if (buf != null) {
+                poolSize.decrementAndGet();
+            } else {
+                buf = ByteBuffer.allocateDirect(POOLED_CAPACITY);
+            }
+        }
+        if (buf == null) {
+            buf = ByteBuffer.allocate(length);
+        }
+        buf.clear();
+        buf.put(bytes, offset, length);
+        buf.flip();
+        return new SharedBuffer(buf);
+    }
+
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt;
+    private volatile long originNanos;
+
+    private SharedBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        refCnt = new AtomicInteger(1);
+    }
+
+    public int size() {
+        return buffer.limit();
+    }
+
+    /**
+     * @return When the message this buffer carries was received, as System.nanoTime(), or 0 if it isn't tracked.
+     */
+    public long getOriginNanos() {
+        return originNanos;
+    }
+
+    public void setOriginNanos(long originNanos) {
+        this.originNanos = originNanos;
+    }
+
+    /**
+     * Get an independent read-only view of the bytes, with its own position.
+     * The view is only valid while a reference is held.
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public SharedBuffer retain() {
+        while (true) {
+            int cnt = refCnt.get();
+            if (cnt <= 0) throw new IllegalStateException("Buffer has already been released!");
+            if (refCnt.compareAndSet(cnt, cnt + 1)) return this;
+        }
+    }
+
+    public void release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt == 0) {
+            if (buffer.isDirect()) {
+                if (poolSize.incrementAndGet() <= MAX_POOLED) {
+                    pool.add(buffer);
+                } else {
+                    poolSize.decrementAndGet();
+                }
+            }
+        } else if (cnt < 0) {
+            throw new IllegalStateException("Buffer released too many times!");
+        }
+    }
+}
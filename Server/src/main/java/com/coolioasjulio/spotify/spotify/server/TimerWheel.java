@@ -0,0 +1,129 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+/**
+ * A hashed timer wheel. Timeouts are hashed into a fixed ring of slots by their deadline, so scheduling and
+ * cancelling are O(1), and each tick only visits the one slot that just came due, no matter how many
+ * timeouts are pending. Deadlines are rounded up to the next tick, which is fine for idle detection.
+ *
+ * Not thread safe, each reactor owns one and only touches it from its own thread.
+ */
+class TimerWheel {
+    private final long tickNanos;
+    private final Timeout[] wheel; // each slot is the head of a doubly linked list
+    private final int mask;
+    private long tick; // the next tick to process
+    private final long startNanos;
+    private int pending;
+
+    /**
+     * @param tickMillis The resolution of the timer.
+     * @param numSlots   The size of the wheel, rounded up to a power of two. Timeouts further than a full turn
+     *                   away stay in their slot for multiple turns.
+     */
+    public TimerWheel(long tickMillis, int numSlots) {
+        tickNanos = tickMillis * 1_000_000L;
+        int size = Integer.highestOneBit(Math.max(1, numSlots - 1)) << 1;
+        wheel = new Timeout[size];
+        mask = size - 1;
+        startNanos = System.nanoTime();
+    }
+
+    public long getTickMillis() {
+        return tickNanos / 1_000_000L;
+    }
+
+    public boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /**
+     * Run the task once the delay has passed.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long now = System.nanoTime() - startNanos;
+        if (pending == 0) {
+            // nothing has been ticking while the wheel was empty, so skip straight to the present
+            tick = Math.max(tick, now / tickNanos);
+        }
+        long deadline = now + delayMillis * 1_000_000L;
+        long deadlineTick = Math.max(tick, (deadline + tickNanos - 1) / tickNanos);
+        Timeout t = new Timeout(task, deadlineTick);
+        int slot = (int) (deadlineTick & mask);
+        t.next = wheel[slot];
+        if (t.next != null) t.next.prev = t;
+        wheel[slot] = t;
+        t.slot = slot;
+        pending++;
+        return t;
+    }
+
+    /**
+     * Run every task whose deadline has passed.
+     */
+    public void advance() {
+        long now = System.nanoTime() - startNanos;
+        while (tick * tickNanos <= now) {
+            long current = tick++;
+            int slot = (int) (current & mask);
+            // Take everything that's due out of the slot first, since the tasks may schedule or cancel timeouts
+            Timeout expired = null;
+            Timeout t = wheel[slot];
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.deadlineTick <= current) {
+                    unlink(t);
+                    t.next = expired;
+                    expired = t;
+                }
+                t = next;
+            }
+            while (expired != null) {
+                Timeout next = expired.next;
+                expired.next = null;
+                if (!expired.cancelled) expired.task.run();
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * @return How long until the next tick is due, for use as a select timeout.
+     */
+    public long millisUntilNextTick() {
+        long now = System.nanoTime() - startNanos;
+        return Math.max(1, (tick * tickNanos - now + 999_999) / 1_000_000L);
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            wheel[t.slot] = t.next;
+        }
+        if (t.next != null) t.next.prev = t.prev;
+        t.next = t.prev = null;
+        t.slot = -1;
+        pending--;
+    }
+
+    class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev, next;
+        private int slot;
+        private boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Stop the task from running. Does nothing if it already ran.
+         */
+        public void cancel() {
+            cancelled = true;
+            if (slot >= 0) unlink(this);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryProtocolTest {
+    private static final String TRACK_URI = "spotify:track:3bjLCKsBNSFyx6Gfsb7X4h";
+    private static final String EPISODE_URI = "spotify:episode:512ojhOuo1ktJprKbVcKyQ";
+
+    @Test
+    void statesRoundTrip() {
+        for (String uri : new String[]{TRACK_URI, EPISODE_URI, "spotify:local:\u00dcn\u00efc\u00f6d\u00e9:::180", null}) {
+            assertRoundTrip(new MusicState(1_585_779_930_707L, 61_234, false, uri));
+            assertRoundTrip(new MusicState(1_585_779_930_707L, 61_234, true, uri));
+        }
+    }
+
+    @Test
+    void trackUrisArePacked() {
+        // 22 raw characters instead of a length and the whole uri
+        int packed = BinaryProtocol.encodeStateFrame(new MusicState(0, 0, false, TRACK_URI)).length;
+        int full = BinaryProtocol.encodeStateFrame(new MusicState(0, 0, false, "spotify:track:tooShort")).length;
+        assertTrue(packed < full);
+        // not base62, so it has to go in full
+        assertRoundTrip(new MusicState(0, 0, false, "spotify:track:3bjLCKsBNSFyx6Gfsb7X4_"));
+    }
+
+    @Test
+    void negativePositionsRoundTrip() {
+        // a host that seeks back right after starting a track can report slightly before zero
+        for (int pos : new int[]{-1, -250, Integer.MIN_VALUE, Integer.MAX_VALUE, 0}) {
+            assertRoundTrip(new MusicState(1_585_779_930_707L, pos, false, TRACK_URI));
+        }
+        // zigzag keeps small negatives small
+        assertEquals(BinaryProtocol.encodeStateFrame(new MusicState(0, 1, false, null)).length,
+                BinaryProtocol.encodeStateFrame(new MusicState(0, -1, false, null)).length);
+    }
+
+    @Test
+    void oversizedUriLengthsAreRejected() {
+        byte[] uri = EPISODE_URI.getBytes(StandardCharsets.UTF_8);
+        // past the end of the payload, and too big for an int, which mustn't wrap round to something that fits
+        for (long length : new long[]{uri.length + 1, Integer.MAX_VALUE, (1L << 32) + uri.length, 1L << 62, -1}) {
+            byte[] payload = statePayload(length, uri);
+            assertThrows(IllegalArgumentException.class,
+                    () -> BinaryProtocol.decodeState(payload, 0, payload.length), "length " + length);
+        }
+    }
+
+    @Test
+    void truncatedPayloadsAreRejected() {
+        byte[] frame = BinaryProtocol.encodeStateFrame(new MusicState(1_585_779_930_707L, 61_234, false, EPISODE_URI));
+        byte[] track = BinaryProtocol.encodeStateFrame(new MusicState(1_585_779_930_707L, 61_234, false, TRACK_URI));
+        // everything after the length and type, cut off at every point
+        for (byte[] f : new byte[][]{frame, track}) {
+            for (int length = 0; length < f.length - 2; length++) {
+                int cut = length;
+                assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decodeState(f, 2, cut), "cut at " + cut);
+            }
+        }
+    }
+
+    @Test
+    void framesWithTheWrongLengthAreRejected() {
+        byte[] frame = BinaryProtocol.encodeStateFrame(new MusicState(0, 0, false, TRACK_URI));
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decodeStateFrame(frame, 0, frame.length - 1));
+        byte[] padded = new byte[frame.length + 1];
+        System.arraycopy(frame, 0, padded, 0, frame.length);
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decodeStateFrame(padded, 0, padded.length));
+
+        byte[] count = BinaryProtocol.encodeMemberCountFrame(3);
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decodeStateFrame(count, 0, count.length));
+    }
+
+    @Test
+    void malformedVarintsAreRejected() {
+        byte[] payload = new byte[12];
+        for (int i = 1; i < payload.length; i++) {
+            payload[i] = (byte) 0x80; // every byte says there's more to come
+        }
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decodeState(payload, 0, payload.length));
+    }
+
+    private static void assertRoundTrip(MusicState state) {
+        byte[] frame = BinaryProtocol.encodeStateFrame(state);
+        MusicState decoded = BinaryProtocol.decodeStateFrame(frame, 0, frame.length);
+        assertEquals(state.toString(), decoded.toString());
+        // the relay hands payloads on as they are, so they have to survive being framed again
+        byte[] reframed = BinaryProtocol.encodeFrame(BinaryProtocol.TYPE_STATE, frame, 2, frame.length - 2);
+        assertEquals(state.toString(), BinaryProtocol.decodeStateFrame(reframed, 0, reframed.length).toString());
+    }
+
+    /**
+     * A state payload with a full uri, whose length prefix says whatever it's told to.
+     */
+    private static byte[] statePayload(long uriLength, byte[] uri) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0); // flags: playing, with a full uri
+        writeVarLong(out, 1_585_779_930_707L);
+        writeVarLong(out, 61_234 << 1);
+        writeVarLong(out, uriLength);
+        out.write(uri, 0, uri.length);
+        return out.toByteArray();
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
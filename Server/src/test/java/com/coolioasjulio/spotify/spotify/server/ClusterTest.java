@@ -0,0 +1,278 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs several cluster nodes in-process on loopback ports, and talks to them the way the client does, using
+ * the JSON protocol so everything is a line.
+ */
+class ClusterTest {
+    private static final String HOST = "127.0.0.1";
+    private static final int TIMEOUT_MS = 5000;
+    private static final String SECRET = "test-cluster-secret";
+
+    private final List<Thread> nodes = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+    private final Gson gson = new Gson();
+
+    @BeforeAll
+    static void quiet() {
+        Log.setLevel(Log.Level.WARN);
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        for (Client c : clients) {
+            c.close();
+        }
+        for (Thread t : nodes) {
+            t.interrupt();
+        }
+        for (Thread t : nodes) {
+            t.join(TIMEOUT_MS);
+        }
+    }
+
+    @Test
+    void joinIsForwardedToTheHostingNode() throws Exception {
+        int a = freePort(), b = freePort();
+        startNode(a, b);
+        startNode(b, a);
+
+        Client host = connect(a);
+        String id = host.create();
+        assertEquals(node(a), owner(id, a, b), "a new party should be owned by the node that created it");
+
+        // b doesn't have the party, so it should pass the join on to a without the member noticing
+        Client member = connect(b);
+        assertEquals(id, member.join(id));
+        assertEquals("1", host.readLine());
+
+        MusicState state = new MusicState(1234, 5678, false, "spotify:track:3bjLCKsBNSFyx6Gfsb7X4h");
+        host.send(gson.toJson(state));
+        MusicState relayed = gson.fromJson(member.readLine(), MusicState.class);
+        assertEquals(state.songPos, relayed.songPos);
+        assertEquals(state.uri, relayed.uri);
+
+        JsonObject status = connect(b).status(id);
+        assertNotNull(status, "a status query should be forwarded too");
+        assertEquals(1, status.get("members").getAsInt());
+    }
+
+    @Test
+    void partiesAreRoutedToTheirNewOwnerWhenANodeIsAdded() throws Exception {
+        int a = freePort(), b = freePort(), c = freePort();
+        startNode(a, b);
+        startNode(b, a);
+
+        // enough parties that some of them are sure to move to the new node
+        List<String> ids = new ArrayList<>();
+        List<Client> hosts = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            Client host = connect(a);
+            ids.add(host.create());
+            hosts.add(host);
+        }
+        List<String> moved = new ArrayList<>();
+        for (String id : ids) {
+            if (node(c).equals(owner(id, a, b, c))) moved.add(id);
+        }
+        assertFalse(moved.isEmpty());
+
+        // c only knows about a, and learns about b from it
+        startNode(c, a);
+        for (String id : moved) {
+            // c owns these now, but only knows where they are once a has handed them over
+            assertTrue(awaitStatus(c, id), "c was never told where its party is");
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            for (int port : new int[]{a, b, c}) {
+                assertEquals(ids.get(i), connect(port).join(ids.get(i)), "join through " + node(port));
+                assertNotNull(hosts.get(i).readLine());
+            }
+            JsonObject status = connect(a).status(ids.get(i));
+            assertEquals(3, status.get("members").getAsInt());
+        }
+
+        // and new parties on c are given ids that c owns
+        String id = connect(c).create();
+        assertEquals(node(c), owner(id, a, b, c));
+        assertEquals(id, connect(a).join(id));
+    }
+
+    @Test
+    void controlMessagesFromOutsideTheClusterAreRefused() throws Exception {
+        int a = freePort(), b = freePort();
+        startNode(a, b);
+        startNode(b, a);
+
+        // a party a owns but doesn't host, so a would forward joins wherever it was told it is
+        String id;
+        do {
+            id = UUID.randomUUID().toString();
+        } while (!node(a).equals(owner(id, a, b)));
+        try (ServerSocket listener = new ServerSocket(0, 50, InetAddress.getByName(HOST))) {
+            String evil = node(listener.getLocalPort());
+            assertRefused(a, "{\"cluster\":\"add\",\"node\":\"" + evil + "\"}");
+            assertRefused(a, "{\"cluster\":\"add\",\"node\":\"" + evil + "\",\"secret\":\"wrong\"}");
+            assertRefused(a, "{\"cluster\":\"locate\",\"id\":\"" + id + "\",\"node\":\"" + evil + "\"}");
+            // even with the secret, a node has to be a host:port
+            assertRefused(a, "{\"cluster\":\"add\",\"secret\":\"" + SECRET + "\"}");
+            assertRefused(a, "{\"cluster\":\"add\",\"node\":\"evil\",\"secret\":\"" + SECRET + "\"}");
+
+            // nothing was routed to the outsider: the party still doesn't exist, and nothing ever connected
+            assertTrue(connect(a).join(id).startsWith("ERROR"), "a join was routed by a refused message");
+            listener.setSoTimeout(500);
+            assertThrows(SocketTimeoutException.class, listener::accept, "a node connected to the outsider");
+        }
+        // and the cluster itself carries on as before
+        Client host = connect(a);
+        String created = host.create();
+        assertEquals(created, connect(b).join(created));
+        assertEquals("1", host.readLine());
+    }
+
+    private void assertRefused(int port, String message) throws IOException {
+        Client c = connect(port);
+        c.send(message);
+        String reply = c.readLine();
+        assertNotNull(reply);
+        assertTrue(reply.startsWith("ERROR"), "accepted " + message + ": " + reply);
+    }
+
+    private static String node(int port) {
+        return HOST + ":" + port;
+    }
+
+    private static String owner(String id, int... ports) {
+        HashRing ring = new HashRing();
+        for (int p : ports) {
+            ring.add(node(p));
+        }
+        return ring.getOwner(UUID.fromString(id));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private void startNode(int port, int... peers) throws InterruptedException {
+        List<String> peerList = new ArrayList<>();
+        for (int p : peers) {
+            peerList.add(node(p));
+        }
+        Server server = new Server(port, 1);
+        server.setCluster(new Cluster(node(port), peerList, SECRET));
+        Thread t = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "node-" + port);
+        t.setDaemon(true);
+        t.start();
+        nodes.add(t);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(HOST, port), TIMEOUT_MS);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        throw new AssertionError("Node never started port=" + port);
+    }
+
+    private boolean awaitStatus(int port, String id) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            if (connect(port).status(id) != null) return true;
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    private Client connect(int port) throws IOException {
+        Client c = new Client(port);
+        clients.add(c);
+        return c;
+    }
+
+    private class Client implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintStream out;
+
+        Client(int port) throws IOException {
+            socket = new Socket(HOST, port);
+            socket.setSoTimeout(TIMEOUT_MS);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+        }
+
+        String create() throws IOException {
+            send("{\"create\":true}");
+            return readLine();
+        }
+
+        String join(String id) throws IOException {
+            send("{\"id\":\"" + id + "\"}");
+            return readLine();
+        }
+
+        /**
+         * @return The party's status, or null if the node couldn't find it.
+         */
+        JsonObject status(String id) throws IOException {
+            send("{\"id\":\"" + id + "\",\"status\":true}");
+            String line = readLine();
+            return line == null || line.startsWith("ERROR") ? null : gson.fromJson(line, JsonObject.class);
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        String readLine() throws IOException {
+            return in.readLine();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stress tests for joining and leaving while states are being broadcast. The members have no connections,
+ * since only the member set is under test.
+ */
+class PartyTest {
+    private static final int THREADS = 16;
+    private static final int CHURN_PER_THREAD = 2_000; // joins and leaves per thread
+    private static final int STAYING_PER_THREAD = 25; // members per thread that join and stay
+
+    private final RelayMetrics metrics = new RelayMetrics(new ConcurrentHashMap<>());
+
+    @Test
+    void concurrentJoinsAndLeavesDuringBroadcast() throws Exception {
+        Party party = new Party(new Member(null, BinaryProtocol.VERSION), metrics.newPartyMetrics());
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong broadcasts = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            // iterate the members the way the relay does, checking every snapshot is consistent
+            Future<?> broadcaster = pool.submit(() -> {
+                while (!done.get()) {
+                    Member[] snapshot = party.getMembers();
+                    Set<Member> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                    for (Member m : snapshot) {
+                        assertNotNull(m, "a snapshot had a hole in it");
+                        assertTrue(seen.add(m), "a snapshot had the same member twice");
+                    }
+                    broadcasts.incrementAndGet();
+                }
+                return null;
+            });
+
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<Member>>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                workers.add(pool.submit(() -> {
+                    start.await();
+                    List<Member> staying = new ArrayList<>();
+                    for (int i = 0; i < CHURN_PER_THREAD; i++) {
+                        Member m = new Member(null, BinaryProtocol.VERSION);
+                        assertTrue(party.addMember(m));
+                        if (i % (CHURN_PER_THREAD / STAYING_PER_THREAD) == 0) {
+                            staying.add(m);
+                        } else {
+                            assertTrue(party.removeMember(m), "a member that joined was lost");
+                            assertFalse(party.removeMember(m), "a member was removed twice");
+                        }
+                    }
+                    return staying;
+                }));
+            }
+            start.countDown();
+
+            Set<Member> expected = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Future<List<Member>> w : workers) {
+                expected.addAll(w.get(60, TimeUnit.SECONDS));
+            }
+            done.set(true);
+            broadcaster.get(10, TimeUnit.SECONDS);
+
+            assertEquals(THREADS * STAYING_PER_THREAD, expected.size());
+            assertEquals(expected.size(), party.size());
+            assertEquals(expected.size(), party.getMemberCount());
+            Set<Member> actual = Collections.newSetFromMap(new IdentityHashMap<>());
+            Collections.addAll(actual, party.getMembers());
+            assertEquals(expected, actual);
+            assertTrue(broadcasts.get() > 0);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void joinsAfterTheEndAreRejected() throws Exception {
+        Party party = new Party(new Member(null, BinaryProtocol.VERSION), metrics.newPartyMetrics());
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<Member>>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                workers.add(pool.submit(() -> {
+                    start.await();
+                    List<Member> added = new ArrayList<>();
+                    for (int i = 0; i < CHURN_PER_THREAD; i++) {
+                        Member m = new Member(null, BinaryProtocol.VERSION);
+                        if (party.addMember(m)) added.add(m);
+                    }
+                    return added;
+                }));
+            }
+            start.countDown();
+            Thread.sleep(1);
+            Member[] atEnd = party.end();
+
+            // every member that was told it joined must be one the end saw, so it gets closed
+            Set<Member> ended = Collections.newSetFromMap(new IdentityHashMap<>());
+            Collections.addAll(ended, atEnd);
+            for (Future<List<Member>> w : workers) {
+                for (Member m : w.get(60, TimeUnit.SECONDS)) {
+                    assertTrue(ended.contains(m), "a member joined after the party ended");
+                }
+            }
+            assertTrue(party.isEnded());
+            assertEquals(0, party.size());
+            assertFalse(party.addMember(new Member(null, BinaryProtocol.VERSION)));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void registryCountsMembersWhilePartiesComeAndGo() throws Exception {
+        Map<UUID, Party> partyMap = new ConcurrentHashMap<>();
+        RelayMetrics registryMetrics = new RelayMetrics(partyMap);
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            // the metrics walk every party, like a scrape while parties are created and ended
+            Future<?> scraper = pool.submit(() -> {
+                while (!done.get()) {
+                    assertTrue(registryMetrics.getActiveMembers() >= 0);
+                }
+                return null;
+            });
+            List<Future<UUID>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                workers.add(pool.submit(() -> {
+                    UUID kept = null;
+                    for (int i = 0; i < CHURN_PER_THREAD / 10; i++) {
+                        UUID uuid = UUID.randomUUID();
+                        Party p = new Party(new Member(null, BinaryProtocol.VERSION), registryMetrics.newPartyMetrics());
+                        partyMap.put(uuid, p);
+                        p.addMember(new Member(null, BinaryProtocol.VERSION));
+                        if (kept == null) {
+                            kept = uuid;
+                        } else {
+                            partyMap.remove(uuid);
+                            p.end();
+                        }
+                    }
+                    return kept;
+                }));
+            }
+            for (Future<UUID> w : workers) {
+                assertTrue(partyMap.containsKey(w.get(60, TimeUnit.SECONDS)));
+            }
+            done.set(true);
+            scraper.get(10, TimeUnit.SECONDS);
+
+            assertEquals(THREADS, registryMetrics.getActiveParties());
+            assertEquals(THREADS, registryMetrics.getActiveMembers());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
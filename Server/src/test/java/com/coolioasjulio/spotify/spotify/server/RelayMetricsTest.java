@@ -0,0 +1,35 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RelayMetricsTest {
+    private final RelayMetrics metrics = new RelayMetrics(new ConcurrentHashMap<>());
+
+    @Test
+    void onlyRelayedUpdatesAreCounted() {
+        RelayMetrics.PartyMetrics party = metrics.newPartyMetrics();
+        // pings, clock samples and snapshots have no origin
+        party.onWritten(-1, 3);
+        party.onWritten(-1, 20);
+        party.onWritten(TimeUnit.MILLISECONDS.toNanos(2), 40);
+
+        assertEquals(1, metrics.getMessagesRelayed());
+        assertEquals(40, metrics.getBytesRelayed());
+        assertEquals(1, party.fanoutLatency.getCount());
+        assertTrue(metrics.toPrometheusText().contains("relay_fanout_latency_all_seconds_count 1\n"));
+    }
+
+    @Test
+    void queueDepthsAreReported() {
+        String text = metrics.toPrometheusText();
+        for (String gauge : new String[]{"relay_queued_messages", "relay_max_queued_messages", "relay_pending_latest"}) {
+            assertTrue(text.contains("# TYPE " + gauge + " gauge\n" + gauge + " 0\n"), gauge);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.coolioasjulio.spotify;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import com.wrapper.spotify.IHttpManager;
+import com.wrapper.spotify.SpotifyHttpManager;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Per-call latency of a playback read through each HTTP manager, against a local HTTPS stand-in for the
+ * Web API. Sample time is used so the percentiles show how stable each one is, not just its average.
+ *
+ * The stand-in only speaks HTTP/1.1, so this measures connection reuse and gzip, not HTTP/2 multiplexing.
+ * Its certificate is made with keytool on setup and trusted through javax.net.ssl.trustStore, which both
+ * managers honour.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpManagerBenchmark {
+    private static final String STORE_PASSWORD = "standin";
+    // about the size of a real playback state
+    private static final String PLAYBACK = "{\"device\":{\"id\":\"0d1841b0976bae2a3a310dd74c0f3df354899bc8\","
+            + "\"is_active\":true,\"name\":\"Desktop\",\"type\":\"Computer\",\"volume_percent\":80},"
+            + "\"shuffle_state\":false,\"repeat_state\":\"off\",\"timestamp\":1590000000000,"
+            + "\"progress_ms\":44272,\"is_playing\":true,\"item\":{\"album\":{\"name\":\"Album\","
+            + "\"uri\":\"spotify:album:6TJmQnO44YE5BtTxH8pop1\"},\"artists\":[{\"name\":\"Artist\","
+            + "\"uri\":\"spotify:artist:08td7MxkoHQkXnWAYD8d6Q\"}],\"duration_ms\":276773,\"explicit\":false,"
+            + "\"id\":\"3bjLCKsBNSFyx6Gfsb7X4h\",\"name\":\"Track\",\"popularity\":66,"
+            + "\"uri\":\"spotify:track:3bjLCKsBNSFyx6Gfsb7X4h\"},\"currently_playing_type\":\"track\"}";
+
+    /**
+     * jdk is {@link JdkHttpManager}, default is the library's own.
+     */
+    @Param({"jdk", "default"})
+    private String manager;
+
+    private Path dir;
+    private HttpsServer server;
+    private ExecutorService serverExecutor;
+    private IHttpManager http;
+    private URI uri;
+    private Header[] headers;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("standin");
+        Path keystore = dir.resolve("standin.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "standin", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD)
+                .inheritIO().start();
+        if (keytool.waitFor() != 0) throw new IllegalStateException("Unable to make a certificate for the stand-in");
+        System.setProperty("javax.net.ssl.trustStore", keystore.toString());
+        System.setProperty("javax.net.ssl.trustStorePassword", STORE_PASSWORD);
+
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keystore.toFile())) {
+            ks.load(in, STORE_PASSWORD.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, STORE_PASSWORD.toCharArray());
+        SSLContext ssl = SSLContext.getInstance("TLS");
+        ssl.init(kmf.getKeyManagers(), null, null);
+
+        byte[] plain = PLAYBACK.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(plain);
+        }
+        // otherwise the stand-in's headers and body wait on each other's ACKs, and that's all this would measure
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(ssl));
+        server.createContext("/v1/me/player", exchange -> respond(exchange, plain, gzipped.toByteArray()));
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        http = "jdk".equals(manager) ? new JdkHttpManager() : new SpotifyHttpManager.Builder().build();
+        uri = URI.create("https://localhost:" + server.getAddress().getPort() + "/v1/me/player");
+        headers = new Header[]{new BasicHeader("Authorization", "Bearer standin")};
+    }
+
+    private static void respond(HttpExchange exchange, byte[] plain, byte[] gzipped) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = accept != null && accept.contains("gzip");
+        byte[] body = gzip ? gzipped : plain;
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        try (var files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String read() throws Exception {
+        return http.get(uri, headers);
+    }
+
+    /**
+     * Reads from several threads at once, like a status read overlapping a playback command.
+     */
+    @Benchmark
+    @Threads(4)
+    public String concurrentRead() throws Exception {
+        return http.get(uri, headers);
+    }
+}
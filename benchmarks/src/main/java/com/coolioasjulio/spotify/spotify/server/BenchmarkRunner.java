@@ -0,0 +1,34 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Takes the usual JMH command line, but always runs the GC profiler so every result comes with its
+ * allocation per operation (gc.alloc.rate.norm). Results are written to jmh-result.json unless another
+ * format is asked for, so they can be compared between changes.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder opts = new OptionsBuilder()
+                .parent(cmd)
+                .addProfiler(GCProfiler.class);
+        if (!cmd.getResultFormat().hasValue()) {
+            opts.resultFormat(ResultFormatType.JSON);
+        }
+        if (cmd.shouldList()) {
+            new Runner(opts.build()).list();
+            return;
+        }
+        new Runner(opts.build()).run();
+    }
+}
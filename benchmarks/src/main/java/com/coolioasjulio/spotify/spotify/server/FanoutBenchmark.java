@@ -0,0 +1,121 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The cost of relaying one host update to every member of a party, against in-memory sinks so that only
+ * the relay itself is measured. Each operation is one whole broadcast.
+ *
+ * printStreamFanout is the original relay, a println and flush per member. The other two follow what
+ * {@link Connection} does now: encode once into a {@link SharedBuffer} and write every member from a view
+ * of it, either straight away or through a conflating latest slot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanoutBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    private int members;
+
+    private String line;
+    private PrintStream[] streams;
+    private WritableByteChannel[] channels;
+    private AtomicReference<SharedBuffer>[] latest;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        line = "{\"timestamp\":1585782330707,\"songPos\":4618,\"isPaused\":false,\"uri\":\"spotify:track:3bjLCKsBNSFyx6Gfsb7X4h\"}";
+        streams = new PrintStream[members];
+        channels = new WritableByteChannel[members];
+        latest = new AtomicReference[members];
+        for (int i = 0; i < members; i++) {
+            streams[i] = new PrintStream(new NullOutputStream());
+            channels[i] = new NullChannel();
+            latest[i] = new AtomicReference<>();
+        }
+    }
+
+    @Benchmark
+    public void printStreamFanout() {
+        for (PrintStream out : streams) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+    @Benchmark
+    public void sharedBufferFanout() throws Exception {
+        SharedBuffer buf = SharedBuffer.encode(line);
+        for (WritableByteChannel channel : channels) {
+            buf.retain();
+            channel.write(buf.view());
+            buf.release();
+        }
+        buf.release();
+    }
+
+    @Benchmark
+    public void conflatedFanout() throws Exception {
+        SharedBuffer buf = SharedBuffer.encode(line);
+        for (AtomicReference<SharedBuffer> slot : latest) {
+            SharedBuffer old = slot.getAndSet(buf.retain());
+            if (old != null) old.release();
+        }
+        buf.release();
+        // then each member's reactor drains its slot
+        for (int i = 0; i < members; i++) {
+            SharedBuffer next = latest[i].getAndSet(null);
+            channels[i].write(next.view());
+            next.release();
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
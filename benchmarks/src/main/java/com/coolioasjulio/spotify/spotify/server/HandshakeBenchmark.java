@@ -0,0 +1,81 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work the server does for every new connection before it's attached to a party: decoding the
+ * InitialRequest, parsing the party id, and looking the party up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeBenchmark {
+    @Param({"100", "10000"})
+    private int parties;
+
+    private Gson gson;
+    private Map<UUID, Party> partyMap;
+    private Server.InitialRequest joinRequest;
+    private String joinLine;
+    private String createLine;
+    private String id;
+
+    @Setup
+    public void setup() {
+        gson = new Gson();
+        partyMap = new ConcurrentHashMap<>();
+        UUID uuid = null;
+        for (int i = 0; i < parties; i++) {
+            uuid = UUID.randomUUID();
+            partyMap.put(uuid, new Party(null, null));
+        }
+        id = uuid.toString();
+        createLine = "{\"create\":true,\"protocol\":3}";
+        joinLine = "{\"id\":\"" + id + "\",\"protocol\":3}";
+        joinRequest = gson.fromJson(joinLine, Server.InitialRequest.class);
+    }
+
+    @Benchmark
+    public String initialRequestEncode() {
+        return gson.toJson(joinRequest);
+    }
+
+    @Benchmark
+    public Server.InitialRequest initialRequestDecodeCreate() {
+        return gson.fromJson(createLine, Server.InitialRequest.class);
+    }
+
+    @Benchmark
+    public Server.InitialRequest initialRequestDecodeJoin() {
+        return gson.fromJson(joinLine, Server.InitialRequest.class);
+    }
+
+    @Benchmark
+    public UUID uuidParse() {
+        return UUID.fromString(id);
+    }
+
+    @Benchmark
+    public Party partyLookup() {
+        return partyMap.get(UUID.fromString(id));
+    }
+}
@@ -0,0 +1,69 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a restarted server takes to read its parties back from the journal. Each party has a state and
+ * a host and member session, as a journal compacted by a busy server would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JournalRecoveryBenchmark {
+    @Param({"10000", "100000"})
+    private int parties;
+
+    private Path path;
+
+    @Setup
+    public void setup() throws IOException {
+        path = Files.createTempFile("party", ".journal");
+        Map<UUID, Party> partyMap = new ConcurrentHashMap<>();
+        Map<String, Session> sessions = new ConcurrentHashMap<>();
+        for (int i = 0; i < parties; i++) {
+            UUID uuid = UUID.randomUUID();
+            Party p = new Party(null, null);
+            p.latestState = new MusicState(System.currentTimeMillis(), i, false, "spotify:track:3bjLCKsBNSFyx6Gfsb7X4h");
+            partyMap.put(uuid, p);
+            Session host = new Session(UUID.randomUUID().toString(), uuid, p, true, null);
+            Session member = new Session(UUID.randomUUID().toString(), uuid, p, false, null);
+            sessions.put(host.token, host);
+            sessions.put(member.token, member);
+        }
+        PartyJournal journal = new PartyJournal(path, partyMap, sessions);
+        journal.start();
+        journal.stop();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public PartyJournal.Recovery recover() throws IOException {
+        return PartyJournal.recover(path);
+    }
+}
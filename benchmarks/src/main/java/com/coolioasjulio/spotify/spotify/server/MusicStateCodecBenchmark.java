@@ -0,0 +1,64 @@
+package com.coolioasjulio.spotify.spotify.server;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JSON encoding of a MusicState against the binary protocol. The client's
+ * MusicManager.MusicState has the same fields, so its Gson cost is the same as measured here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MusicStateCodecBenchmark {
+    private Gson gson;
+    private MusicState state;
+    private byte[] json;
+    private byte[] frame;
+    private int headerLength;
+
+    @Setup
+    public void setup() {
+        gson = new Gson();
+        state = new MusicState(1585782330707L, 4618, false, "spotify:track:3bjLCKsBNSFyx6Gfsb7X4h");
+        json = (gson.toJson(state) + "\n").getBytes(StandardCharsets.UTF_8);
+        frame = BinaryProtocol.encodeStateFrame(state);
+        headerLength = 2; // one byte of length and one byte of type, since the frame is under 128 bytes
+        System.out.printf("%nJSON: %d bytes, binary: %d bytes%n", json.length, frame.length);
+    }
+
+    @Benchmark
+    public byte[] gsonEncode() {
+        return (gson.toJson(state) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public MusicState gsonDecode() {
+        return gson.fromJson(new String(json, 0, json.length - 1, StandardCharsets.UTF_8), MusicState.class);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return BinaryProtocol.encodeStateFrame(state);
+    }
+
+    @Benchmark
+    public MusicState binaryDecode() {
+        return BinaryProtocol.decodeState(frame, headerLength, frame.length - headerLength);
+    }
+}
@@ -0,0 +1,67 @@
+package com.coolioasjulio.spotify.loadtest;
+
+/**
+ * A log-linear histogram of latencies in microseconds, with about 3% precision. Not thread safe, so each
+ * reader thread keeps its own and they're merged at the end.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final long[] buckets = new long[NUM_BUCKETS];
+    private long count;
+    private long max;
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        buckets[bucketOf(micros)]++;
+        count++;
+        max = Math.max(max, micros);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param p The percentile, between 0 and 1.
+     * @return The upper bound of the bucket holding that percentile, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double p) {
+        if (count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= target) return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        return (1L << exp) + ((long) (sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
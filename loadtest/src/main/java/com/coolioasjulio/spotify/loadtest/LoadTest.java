@@ -0,0 +1,406 @@
+package com.coolioasjulio.spotify.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a running server with simulated parties, speaking the JSON line protocol directly so that no Spotify
+ * account is needed. Every host pushes states at a fixed rate, and every member measures how long each state
+ * took to arrive. Results are written as JSON, so runs against different releases can be compared.
+ */
+public class LoadTest {
+    /**
+     * Options are passed as --name=value. Supported options:
+     * --host=HOST          server to connect to (default: localhost)
+     * --port=N             server port (default: 5000)
+     * --parties=N          number of parties (default: 100)
+     * --members=N          members per party (default: 10)
+     * --rate=N             states per second pushed by each host (default: 2)
+     * --warmup=N           seconds to run before measuring (default: 5)
+     * --duration=N         seconds to measure for (default: 30)
+     * --readers=N          member reading threads (default: number of cores)
+     * --connect-threads=N  threads used to open connections (default: 8)
+     * --server-pid=N       sample this process's memory and threads, read from /proc
+     * --label=TEXT         copied into the results, to tell runs apart
+     * --out=FILE           write the results here instead of to stdout
+     *
+     * Thousands of connections need a raised file descriptor limit (ulimit -n) on both ends.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        if (opts.containsKey("help")) {
+            System.err.println("Usage: java -jar loadtest.jar [--host=HOST] [--port=N] [--parties=N] [--members=N] " +
+                    "[--rate=N] [--warmup=S] [--duration=S] [--readers=N] [--connect-threads=N] [--server-pid=PID] " +
+                    "[--label=TEXT] [--out=FILE]");
+            return;
+        }
+        Config config = new Config(opts);
+        Results results = new LoadTest(config).run();
+        String json = new GsonBuilder().setPrettyPrinting().create().toJson(results);
+        if (opts.containsKey("out")) {
+            Files.write(Paths.get(opts.get("out")), (json + "\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.println(json);
+        }
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("Unrecognized argument: " + arg);
+            int i = arg.indexOf('=');
+            if (i < 0) {
+                opts.put(arg.substring(2), "true");
+            } else {
+                opts.put(arg.substring(2, i), arg.substring(i + 1));
+            }
+        }
+        return opts;
+    }
+
+    private static final String TRACK = "spotify:track:3bjLCKsBNSFyx6Gfsb7X4h";
+
+    private final Config config;
+    private final long baseNanos;
+    private final MemberReader[] readers;
+    private final AtomicInteger nextReader;
+    private final List<Host> hosts;
+    private final LongAdder statesSent, deliveriesExpected, writeFailures, connectFailures;
+    private final Gson gson;
+    private volatile boolean recording;
+
+    private LoadTest(Config config) throws IOException {
+        this.config = config;
+        baseNanos = System.nanoTime();
+        readers = new MemberReader[config.readers];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new MemberReader(baseNanos);
+        }
+        nextReader = new AtomicInteger();
+        hosts = new ArrayList<>();
+        statesSent = new LongAdder();
+        deliveriesExpected = new LongAdder();
+        writeFailures = new LongAdder();
+        connectFailures = new LongAdder();
+        gson = new Gson();
+    }
+
+    private Results run() throws Exception {
+        PrintStream log = System.err;
+        log.printf("Connecting %d parties of %d members to %s:%d...\n",
+                config.parties, config.members, config.host, config.port);
+        long connectStart = System.nanoTime();
+        connect();
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        int connectedMembers = hosts.stream().mapToInt(h -> h.members).sum();
+        log.printf("Connected %d hosts and %d members in %.1fs, %d failures\n",
+                hosts.size(), connectedMembers, connectSeconds, connectFailures.sum());
+
+        for (int i = 0; i < readers.length; i++) {
+            readers[i].start("reader-" + i);
+        }
+        ProcessStats stats = config.serverPid > 0 ? new ProcessStats(config.serverPid) : null;
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                    Thread t = new Thread(r, "host-scheduler");
+                    t.setDaemon(true);
+                    return t;
+                });
+        if (stats != null) {
+            scheduler.scheduleAtFixedRate(stats::sample, 0, 1, TimeUnit.SECONDS);
+        }
+        long periodNanos = (long) (1e9 / config.rate);
+        for (Host h : hosts) {
+            // spread the hosts out over the period, so they don't all send at the same instant
+            long delay = ThreadLocalRandom.current().nextLong(periodNanos);
+            scheduler.scheduleAtFixedRate(h::push, delay, periodNanos, TimeUnit.NANOSECONDS);
+        }
+
+        log.printf("Warming up for %ds...\n", config.warmup);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.warmup));
+        setRecording(true);
+        long start = System.nanoTime();
+        log.printf("Measuring for %ds...\n", config.duration);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.duration));
+        setRecording(false);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (stats != null) stats.sample();
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        LatencyHistogram latency = new LatencyHistogram();
+        long received = 0, malformed = 0, disconnects = 0;
+        for (MemberReader r : readers) {
+            r.stop();
+            latency.add(r.getLatency());
+            received += r.getReceived();
+            malformed += r.getMalformed();
+            disconnects += r.getDisconnects();
+        }
+        for (Host h : hosts) {
+            h.close();
+        }
+
+        Results results = new Results();
+        results.label = config.label;
+        results.timestamp = System.currentTimeMillis();
+        results.config = config;
+        results.hosts = hosts.size();
+        results.members = connectedMembers;
+        results.connectFailures = connectFailures.sum();
+        results.connectSeconds = connectSeconds;
+        results.measuredSeconds = seconds;
+        results.statesSent = statesSent.sum();
+        results.deliveriesExpected = deliveriesExpected.sum();
+        results.deliveriesReceived = received;
+        results.deliveryRatio = results.deliveriesExpected == 0 ? 0 : (double) received / results.deliveriesExpected;
+        results.sendRate = results.statesSent / seconds;
+        results.deliveryRate = received / seconds;
+        results.writeFailures = writeFailures.sum();
+        results.malformed = malformed;
+        results.disconnects = disconnects;
+        results.latencyMicros = new Latency(latency);
+        if (stats != null) {
+            results.server = new ServerStats(stats);
+        }
+        log.printf("Sent %d states, delivered %d of %d (%.1f%%), %.0f deliveries/s\n", results.statesSent, received,
+                results.deliveriesExpected, results.deliveryRatio * 100, results.deliveryRate);
+        log.printf("Latency: p50=%dus p99=%dus p99.9=%dus max=%dus\n", results.latencyMicros.p50,
+                results.latencyMicros.p99, results.latencyMicros.p999, results.latencyMicros.max);
+        return results;
+    }
+
+    private void setRecording(boolean recording) {
+        this.recording = recording;
+        for (MemberReader r : readers) {
+            r.setRecording(recording);
+        }
+    }
+
+    /**
+     * Open every party, using a few threads since each handshake is a round trip.
+     */
+    private void connect() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(config.connectThreads);
+        List<Future<Host>> futures = new ArrayList<>();
+        for (int i = 0; i < config.parties; i++) {
+            futures.add(pool.submit(this::createParty));
+        }
+        for (Future<Host> f : futures) {
+            Host h = f.get();
+            if (h != null) hosts.add(h);
+        }
+        pool.shutdown();
+    }
+
+    private Host createParty() {
+        SocketChannel host;
+        String id;
+        try {
+            host = open();
+            id = handshake(host, "{\"create\":true}");
+        } catch (IOException e) {
+            connectFailures.increment();
+            return null;
+        }
+        int members = 0;
+        for (int i = 0; i < config.members; i++) {
+            try {
+                SocketChannel member = open();
+                String ack = handshake(member, "{\"id\":\"" + id + "\"}");
+                if (!ack.equals(id)) throw new IOException("Join rejected: " + ack);
+                readers[Math.floorMod(nextReader.getAndIncrement(), readers.length)].add(member, false);
+                members++;
+            } catch (IOException e) {
+                connectFailures.increment();
+            }
+        }
+        try {
+            readers[Math.floorMod(nextReader.getAndIncrement(), readers.length)].add(host, true);
+        } catch (IOException e) {
+            connectFailures.increment();
+            return null;
+        }
+        return new Host(host, members);
+    }
+
+    private SocketChannel open() throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(config.host, config.port));
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+
+    /**
+     * Send the initial request and read the acknowledgement, one byte at a time so nothing after it is consumed.
+     */
+    private static String handshake(SocketChannel channel, String request) throws IOException {
+        channel.write(ByteBuffer.wrap((request + "\n").getBytes(StandardCharsets.UTF_8)));
+        StringBuilder ack = new StringBuilder();
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while (true) {
+            b.clear();
+            if (channel.read(b) < 0) throw new IOException("Connection closed during handshake!");
+            char c = (char) b.get(0);
+            if (c == '\n') break;
+            ack.append(c);
+        }
+        return ack.toString().trim();
+    }
+
+    /**
+     * A simulated host. Its timestamps are really System.nanoTime() relative to the start of the test,
+     * which the members use to work out the latency.
+     */
+    private class Host {
+        private final SocketChannel channel;
+        private final int members;
+        private int songPos;
+        private boolean failed;
+
+        Host(SocketChannel channel, int members) {
+            this.channel = channel;
+            this.members = members;
+        }
+
+        synchronized void push() {
+            if (failed) return;
+            long timestamp = System.nanoTime() - baseNanos;
+            songPos += 500;
+            String line = gson.toJson(new MusicState(timestamp, songPos, false, TRACK)) + "\n";
+            ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            // the channel is non-blocking since a reader drains it, so spin if the server isn't keeping up
+            try {
+                while (buf.hasRemaining()) {
+                    if (channel.write(buf) == 0) Thread.yield();
+                }
+            } catch (IOException e) {
+                failed = true;
+                writeFailures.increment();
+                return;
+            }
+            if (recording) {
+                statesSent.increment();
+                deliveriesExpected.add(members);
+            }
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Matches the server's MusicState, with the timestamp first so members can find it quickly.
+     */
+    private static class MusicState {
+        private final long timestamp;
+        private final int songPos;
+        private final boolean isPaused;
+        private final String uri;
+
+        MusicState(long timestamp, int songPos, boolean isPaused, String uri) {
+            this.timestamp = timestamp;
+            this.songPos = songPos;
+            this.isPaused = isPaused;
+            this.uri = uri;
+        }
+    }
+
+    private static class Config {
+        private final String host;
+        private final int port;
+        private final int parties;
+        private final int members;
+        private final double rate;
+        private final int warmup;
+        private final int duration;
+        private final int readers;
+        private final int connectThreads;
+        private final transient long serverPid;
+        private final String label;
+
+        Config(Map<String, String> opts) {
+            host = opts.getOrDefault("host", "localhost");
+            port = Integer.parseInt(opts.getOrDefault("port", "5000"));
+            parties = Integer.parseInt(opts.getOrDefault("parties", "100"));
+            members = Integer.parseInt(opts.getOrDefault("members", "10"));
+            rate = Double.parseDouble(opts.getOrDefault("rate", "2"));
+            warmup = Integer.parseInt(opts.getOrDefault("warmup", "5"));
+            duration = Integer.parseInt(opts.getOrDefault("duration", "30"));
+            readers = Integer.parseInt(opts.getOrDefault("readers",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            connectThreads = Integer.parseInt(opts.getOrDefault("connect-threads", "8"));
+            serverPid = Long.parseLong(opts.getOrDefault("server-pid", "-1"));
+            label = opts.getOrDefault("label", "");
+            if (rate <= 0) throw new IllegalArgumentException("The rate must be positive!");
+        }
+    }
+
+    private static class Results {
+        private String label;
+        private long timestamp;
+        private Config config;
+        private int hosts;
+        private int members;
+        private long connectFailures;
+        private double connectSeconds;
+        private double measuredSeconds;
+        private long statesSent;
+        private long deliveriesExpected;
+        private long deliveriesReceived;
+        private double deliveryRatio;
+        private double sendRate;
+        private double deliveryRate;
+        private long writeFailures;
+        private long malformed;
+        private long disconnects;
+        private Latency latencyMicros;
+        private ServerStats server;
+    }
+
+    private static class Latency {
+        private final long count, p50, p90, p99, p999, max;
+
+        Latency(LatencyHistogram h) {
+            count = h.getCount();
+            p50 = h.getPercentile(0.5);
+            p90 = h.getPercentile(0.9);
+            p99 = h.getPercentile(0.99);
+            p999 = h.getPercentile(0.999);
+            max = h.getMax();
+        }
+    }
+
+    private static class ServerStats {
+        private final long rssKb, peakRssKb;
+        private final int threads, peakThreads;
+
+        ServerStats(ProcessStats stats) {
+            rssKb = stats.getRssKb();
+            peakRssKb = stats.getPeakRssKb();
+            threads = stats.getThreads();
+            peakThreads = stats.getPeakThreads();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.coolioasjulio.spotify.loadtest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * A selector thread that reads from many simulated members at once. Every state line carries the time it
+ * was sent in its timestamp field, so the delivery latency is just the difference.
+ *
+ * Hosts are registered here too, so the member counts the server sends them get drained.
+ */
+class MemberReader implements Runnable {
+    private static final byte[] TIMESTAMP_KEY = "\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final long baseNanos;
+    private final Selector selector;
+    private final ByteBuffer readBuffer;
+    private final LatencyHistogram latency;
+    private volatile boolean recording;
+    private volatile long received, malformed, disconnects;
+    private Thread thread;
+
+    /**
+     * @param baseNanos The System.nanoTime() that the hosts' timestamps are relative to.
+     */
+    public MemberReader(long baseNanos) throws IOException {
+        this.baseNanos = baseNanos;
+        selector = Selector.open();
+        readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        latency = new LatencyHistogram();
+    }
+
+    /**
+     * Add a connection that has already finished its handshake. Must be called before {@link #start(String)}.
+     */
+    public void add(SocketChannel channel, boolean isHost) throws IOException {
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Peer(isHost));
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop reading and close every connection. The results are safe to read once this returns.
+     */
+    public void stop() throws InterruptedException {
+        thread.interrupt();
+        selector.wakeup();
+        thread.join();
+    }
+
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getMalformed() {
+        return malformed;
+    }
+
+    public long getDisconnects() {
+        return disconnects;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.interrupted()) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (key.isValid() && key.isReadable()) {
+                    read(key);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {}
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Peer peer = (Peer) key.attachment();
+        int n;
+        readBuffer.clear();
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            disconnects++;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            return;
+        }
+        if (peer.isHost) return; // hosts only get member counts
+        long now = System.nanoTime() - baseNanos;
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                onLine(peer.line, peer.length, now);
+                peer.length = 0;
+            } else if (peer.length < MAX_LINE_LENGTH) {
+                peer.line[peer.length++] = b;
+            }
+        }
+    }
+
+    private void onLine(byte[] line, int length, long now) {
+        if (!recording) return;
+        long sentAt = parseTimestamp(line, length);
+        if (sentAt < 0) {
+            malformed++;
+            return;
+        }
+        received++;
+        latency.record((now - sentAt) / 1000);
+    }
+
+    /**
+     * Pull the timestamp out of a state line without building a string or parsing the whole thing.
+     */
+    private static long parseTimestamp(byte[] line, int length) {
+        outer:
+        for (int i = 0; i + TIMESTAMP_KEY.length <= length; i++) {
+            for (int j = 0; j < TIMESTAMP_KEY.length; j++) {
+                if (line[i + j] != TIMESTAMP_KEY[j]) continue outer;
+            }
+            long value = 0;
+            int pos = i + TIMESTAMP_KEY.length;
+            if (pos >= length || line[pos] < '0' || line[pos] > '9') return -1;
+            while (pos < length && line[pos] >= '0' && line[pos] <= '9') {
+                value = value * 10 + (line[pos++] - '0');
+            }
+            return value;
+        }
+        return -1;
+    }
+
+    private static class Peer {
+        private final boolean isHost;
+        private final byte[] line = new byte[MAX_LINE_LENGTH];
+        private int length;
+
+        Peer(boolean isHost) {
+            this.isHost = isHost;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.coolioasjulio.spotify.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Samples the resident memory and thread count of another process from /proc, so this only works on Linux.
+ * Keeps the peak of each, since that's what matters when sizing a box.
+ */
+class ProcessStats {
+    private final Path status;
+    private long rssKb = -1, peakRssKb = -1;
+    private int threads = -1, peakThreads = -1;
+
+    public ProcessStats(long pid) {
+        status = Paths.get("/proc", String.valueOf(pid), "status");
+    }
+
+    /**
+     * @return False if the process couldn't be read, for example because it has exited.
+     */
+    public synchronized boolean sample() {
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    rssKb = Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    peakRssKb = Math.max(peakRssKb, rssKb);
+                } else if (line.startsWith("Threads:")) {
+                    threads = Integer.parseInt(line.substring(8).trim());
+                    peakThreads = Math.max(peakThreads, threads);
+                }
+            }
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public synchronized long getRssKb() {
+        return rssKb;
+    }
+
+    public synchronized long getPeakRssKb() {
+        return peakRssKb;
+    }
+
+    public synchronized int getThreads() {
+        return threads;
+    }
+
+    public synchronized int getPeakThreads() {
+        return peakThreads;
+    }
+}